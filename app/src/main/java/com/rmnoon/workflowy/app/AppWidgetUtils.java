@@ -1,8 +1,8 @@
 package com.rmnoon.workflowy.app;
 
 import android.app.Activity;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.ComponentName;
@@ -77,7 +77,7 @@ public class AppWidgetUtils {
         itemView.setOnClickFillInIntent(itemViewId, fillInIntent);
     }
 
-    public static void enqueueForService(Context context, Class<? extends IntentService> clazz, int appWidgetId, String action, Map<String, String> extraStrings) {
+    public static void enqueueForService(Context context, Class<? extends Service> clazz, int appWidgetId, String action, Map<String, String> extraStrings) {
         Intent intent = new Intent(context, clazz)
                 .setAction(action)
                 .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
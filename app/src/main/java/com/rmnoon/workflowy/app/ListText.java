@@ -0,0 +1,59 @@
+package com.rmnoon.workflowy.app;
+
+import android.text.Html;
+import android.text.SpannedString;
+import android.util.LruCache;
+
+import com.rmnoon.workflowy.client.WFList;
+
+/**
+ * Renders lists' names and notes (which are HTML) for display, keeping the results in a bounded
+ * LRU cache keyed by list id and last modified time so that redraws and scrolling don't parse the
+ * same text over and over.
+ */
+public class ListText {
+
+    private static final int MAX_CACHED_CHARS = 128 * 1024; // of source text, the spans are roughly proportional
+
+    private static final LruCache<String, Rendered> cache = new LruCache<String, Rendered>(MAX_CACHED_CHARS) {
+        @Override
+        protected int sizeOf(String key, Rendered value) {
+            return key.length() + value.source.length();
+        }
+    };
+
+    /**
+     * Returns the list's name, rendered ("" if it doesn't have one).
+     */
+    public static CharSequence getName(WFList list) {
+        return render(list, "n", list.getName());
+    }
+
+    /**
+     * Returns the list's note, rendered ("" if it doesn't have one).
+     */
+    public static CharSequence getDescription(WFList list) {
+        return render(list, "d", list.getDescription());
+    }
+
+    private static CharSequence render(WFList list, String field, String source) {
+        if (source == null || source.isEmpty()) return "";
+        String key = list.getId() + ":" + list.getLastModified() + ":" + field;
+        Rendered cached = cache.get(key);
+        if (cached != null && cached.source.equals(source)) return cached.text; // (two edits can land in the same second)
+
+        Rendered rendered = new Rendered(source, new SpannedString(Html.fromHtml(source))); // immutable, so it can be shared
+        cache.put(key, rendered);
+        return rendered.text;
+    }
+
+    private static class Rendered {
+        final String source;
+        final CharSequence text;
+
+        Rendered(String source, CharSequence text) {
+            this.source = source;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.rmnoon.workflowy.app;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs work on a few background threads, in two lanes: anything the user's waiting on goes ahead of
+ * any background work that hasn't started yet, and only one piece of background work runs at a time
+ * (so there's always a thread free for the user's).  Work can have a key, and work with the same
+ * key runs one at a time in the order it was submitted (like changes to the same list).
+ */
+class PriorityWorkQueue {
+
+    enum Lane { USER, BACKGROUND }
+
+    private final int maxConcurrent;
+    private final Runnable onIdle;
+    private final ExecutorService executor;
+
+    // waiting work in the order it was submitted, by lane
+    private final List<Work> waitingUser = Lists.newLinkedList();
+    private final List<Work> waitingBackground = Lists.newLinkedList();
+    private final Set<String> runningKeys = Sets.newHashSet();
+    private int running;
+    private boolean backgroundRunning;
+
+    /**
+     * @param name what to name the threads
+     * @param maxConcurrent how many pieces of work can run at once (at least 2, so background work
+     *                      can't hold up the user's)
+     * @param onIdle called (on a worker thread) whenever the last piece of work finishes
+     */
+    PriorityWorkQueue(String name, int maxConcurrent, Runnable onIdle) {
+        Preconditions.checkArgument(maxConcurrent >= 2);
+        this.maxConcurrent = maxConcurrent;
+        this.onIdle = onIdle;
+        this.executor = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(name + "-%d")
+                .build());
+    }
+
+    /**
+     * Queues some work.
+     * @param key work with the same key runs one at a time, in order (null for no key)
+     */
+    void submit(Lane lane, String key, Runnable task) {
+        synchronized (this) {
+            (lane == Lane.USER ? waitingUser : waitingBackground).add(new Work(lane, key, task));
+        }
+        dispatch();
+    }
+
+    /**
+     * Stops the threads once the work that's been submitted is done.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    synchronized boolean isIdle() {
+        return running == 0 && waitingUser.isEmpty() && waitingBackground.isEmpty();
+    }
+
+    /**
+     * Starts as much of the waiting work as can run now.
+     */
+    private void dispatch() {
+        while (true) {
+            final Work next;
+            synchronized (this) {
+                if (running >= maxConcurrent) return;
+                next = takeNext();
+                if (next == null) return;
+                running++;
+                if (next.key != null) runningKeys.add(next.key);
+                if (next.lane == Lane.BACKGROUND) backgroundRunning = true;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        next.task.run();
+                    } finally {
+                        finished(next);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes the first piece of work that can run now (must be called holding this queue's lock).
+     */
+    private Work takeNext() {
+        Work next = takeFirstRunnable(waitingUser);
+        if (next == null && !backgroundRunning) next = takeFirstRunnable(waitingBackground);
+        return next;
+    }
+
+    private Work takeFirstRunnable(List<Work> waiting) {
+        for (Iterator<Work> it = waiting.iterator(); it.hasNext(); ) {
+            Work work = it.next();
+            if (work.key == null || !runningKeys.contains(work.key)) {
+                it.remove();
+                return work;
+            }
+        }
+        return null;
+    }
+
+    private void finished(Work work) {
+        synchronized (this) {
+            running--;
+            if (work.key != null) runningKeys.remove(work.key);
+            if (work.lane == Lane.BACKGROUND) backgroundRunning = false;
+        }
+        dispatch();
+        if (isIdle()) onIdle.run();
+    }
+
+    private static class Work {
+        final Lane lane;
+        final String key;
+        final Runnable task;
+
+        Work(Lane lane, String key, Runnable task) {
+            this.lane = lane;
+            this.key = key;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.rmnoon.workflowy.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses bursts of widget redraw requests (like a run of actions finishing one after another in
+ * {@link WFService}) into a single redraw: the first request schedules a pass on the main thread a
+ * frame or so later, and any others that come in before it runs just join it.  Each pass redraws
+ * whatever's changed since the last one (see {@link WidgetRedraws}).
+ */
+class RedrawCoordinator {
+
+    private static final String TAG = RedrawCoordinator.class.getName();
+
+    static final long REDRAW_WINDOW_MS = 16; // about a frame
+
+    private static RedrawCoordinator instance = null;
+
+    static synchronized RedrawCoordinator getInstance(Context context) {
+        if (instance == null) {
+            instance = new RedrawCoordinator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicLong requestedRedraws = new AtomicLong();
+    private final AtomicLong performedRedraws = new AtomicLong();
+    private boolean scheduled;
+
+    private final Runnable redrawPass = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RedrawCoordinator.this) {
+                scheduled = false; // anything asked for from here on needs another pass
+            }
+            long performed = performedRedraws.incrementAndGet();
+            WorkflowyListWidget.redrawChangedWidgets(context);
+            Log.d(TAG, "Redraw pass " + performed + " (" + requestedRedraws.get() + " requested so far)");
+        }
+    };
+
+    private RedrawCoordinator(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Asks for the widgets to be redrawn (any that have changed, anyway) soon.
+     */
+    void requestRedraw() {
+        requestedRedraws.incrementAndGet();
+        synchronized (this) {
+            if (scheduled) return;
+            scheduled = true;
+        }
+        handler.postDelayed(redrawPass, REDRAW_WINDOW_MS);
+    }
+
+    long getRequestedRedraws() {
+        return requestedRedraws.get();
+    }
+
+    long getPerformedRedraws() {
+        return performedRedraws.get();
+    }
+}
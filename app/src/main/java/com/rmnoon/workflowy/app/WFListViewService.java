@@ -4,7 +4,6 @@ import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Paint;
-import android.text.Html;
 import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
@@ -54,15 +53,14 @@ public class WFListViewService extends RemoteViewsService {
 
             RemoteViews listItemLayout = new RemoteViews(context.getPackageName(), R.layout.list_item);
 
-            String name = list.getName();
-            listItemLayout.setTextViewText(R.id.item_name, Html.fromHtml(name == null ? "" : name));
+            listItemLayout.setTextViewText(R.id.item_name, ListText.getName(list));
 
             String desc = list.getDescription();
             if (desc == null || desc.isEmpty()) {
                 listItemLayout.setTextViewText(R.id.item_desc, "");
                 listItemLayout.setViewVisibility(R.id.item_desc, View.GONE);
             } else {
-                listItemLayout.setTextViewText(R.id.item_desc, Html.fromHtml(desc));
+                listItemLayout.setTextViewText(R.id.item_desc, ListText.getDescription(list));
                 listItemLayout.setViewVisibility(R.id.item_desc, View.VISIBLE);
             }
 
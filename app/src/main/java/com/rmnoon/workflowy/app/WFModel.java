@@ -4,25 +4,41 @@ import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.Nullable;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.rmnoon.workflowy.client.BadLoginException;
+import com.rmnoon.workflowy.client.MappedTreeSnapshot;
+import com.rmnoon.workflowy.client.OperationJournal;
+import com.rmnoon.workflowy.client.TreeChangeEvent;
+import com.rmnoon.workflowy.client.TreeChangeListener;
+import com.rmnoon.workflowy.client.TreeDiff;
 import com.rmnoon.workflowy.client.WFClient;
 import com.rmnoon.workflowy.client.WFList;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -55,10 +71,24 @@ public class WFModel {
 
     private static final String SESSION_FILE = "WorkflowyListSession";
     private static final String SESSION_PREF = "SESSION";
+    private static final String JOURNAL_FILE = "WorkflowyListJournal";
+    private static final String SNAPSHOT_FILE = "WorkflowyListSnapshot"; // the lists, which aren't in the session pref
+    private static final long MAX_WRITE_DELAY_MS = 1000;
+    private static final long GROUP_COMMIT_WINDOW_MS = 500; // changes made in quick succession go out in one push
 
     private WFClient client;
     private SharedPreferences widgetPrefs, sessionPrefs, globalPrefs;
+    private AtomicFile snapshotFile;
+    // serves reads straight from the snapshot file until the client needs the whole tree (null once it has it)
+    private volatile MappedTreeSnapshot mappedLists;
     private Gson gson;
+    private final WriteBehind writes = new WriteBehind("WFModel-writes", MAX_WRITE_DELAY_MS);
+    // what each widget shows, until a change to the tree or its preferences means it has to be worked out again
+    private final Map<Integer, WidgetView> widgetViews = Maps.newHashMap();
+    private long widgetViewsGeneration; // bumped with every invalidation, so views worked out across one aren't kept
+    // every widget's preferences, read from widgetPrefs once (after that it's only written to)
+    private final Map<Integer, WidgetPreferences> widgetPrefsCache = Maps.newTreeMap();
+    private final WidgetRedraws redraws = new WidgetRedraws();
 
 
     private WFModel(Context context) {
@@ -69,6 +99,15 @@ public class WFModel {
         this.widgetPrefs = context.getSharedPreferences(WIDGET_PREFS_FILE, Context.MODE_PRIVATE);
         this.sessionPrefs = context.getSharedPreferences(SESSION_FILE, Context.MODE_PRIVATE);
         this.globalPrefs = context.getSharedPreferences(GLOBAL_PREFS_FILE, Context.MODE_PRIVATE);
+        loadWidgetPrefs();
+        this.snapshotFile = new AtomicFile(new File(context.getFilesDir(), SNAPSHOT_FILE));
+        client.addChangeListener(new TreeChangeListener() {
+            @Override
+            public void onTreeChanged(List<TreeChangeEvent> events) {
+                invalidateWidgetViews(events);
+                requestRedraws(events);
+            }
+        }, MoreExecutors.directExecutor());
 
         String savedSession = sessionPrefs.getString(SESSION_PREF, null);
 
@@ -81,6 +120,22 @@ public class WFModel {
             }
         }
 
+        // the journal has any changes made since the session was last saved
+        try {
+            client.setJournal(new OperationJournal(new File(context.getFilesDir(), JOURNAL_FILE)));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the journal, unconfirmed changes will only be saved with the session", e);
+        }
+        client.setGroupCommit(GROUP_COMMIT_WINDOW_MS, WFClient.DEFAULT_GROUP_COMMIT_MAX_OPS);
+
+        if (client.isLoggedIn()) {
+            if (client.hasUnconfirmedOperations()) {
+                restoreLists(); // so they're applied to what we show
+            } else {
+                mapLists();
+            }
+        }
+
         if (client.isLoggedIn()) {
             Log.i(TAG, "restored from saved session");
         } else {
@@ -88,36 +143,147 @@ public class WFModel {
         }
     }
 
+    /**
+     * Saves the session (and its lists) in the background, soon.  See {@link #flushWrites()}.
+     */
     public void backupSession() {
-        if (!client.isLoggedIn()) return;
-        String session = client.getSession();
-        if (session != null) sessionPrefs.edit().putString(SESSION_PREF, session).commit();
+        writes.markDirty(SESSION_PREF, new Runnable() {
+            @Override
+            public void run() {
+                writeSession();
+            }
+        });
+    }
+
+    /**
+     * Makes sure everything that's waiting to be saved has been, for when the process might be
+     * about to go away.
+     */
+    public void flushWrites() {
+        writes.flush();
     }
 
     public void clearSession() {
         setConfiguredCredentials(null, null);
-        sessionPrefs.edit().remove(SESSION_PREF).commit();
+        unmapLists();
         if (client.isLoggedIn()) {
-            client.logout();
+            client.logout(); // (before the files are deleted, so a backup can't save anything after they are)
+        }
+        writes.markDirty(SESSION_PREF, new Runnable() {
+            @Override
+            public void run() {
+                sessionPrefs.edit().remove(SESSION_PREF).commit();
+                snapshotFile.delete();
+            }
+        });
+    }
+
+    private void writeSession() {
+        if (!client.isLoggedIn()) return;
+        // if we're still reading from the snapshot it's already up to date
+        String session = mappedLists != null || backupLists() ? client.getSessionWithoutLists() : client.getSession();
+        if (session != null) sessionPrefs.edit().putString(SESSION_PREF, session).commit();
+    }
+
+    /**
+     * Writes the client's lists to the snapshot file.
+     * @return whether it worked (if not the lists have to be saved with the session)
+     */
+    private boolean backupLists() {
+        FileOutputStream out = null;
+        try {
+            out = snapshotFile.startWrite();
+            client.writeLists(out);
+            snapshotFile.finishWrite(out);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write the snapshot, saving the lists with the session", e);
+            if (out != null) snapshotFile.failWrite(out);
+            return false;
         }
     }
 
+    /**
+     * Reads the client's lists back from the snapshot file, if there is one (sessions saved before
+     * we had snapshots have their lists in them).
+     */
+    private void restoreLists() {
+        if (!snapshotFile.getBaseFile().exists()) return;
+        FileInputStream in = null;
+        try {
+            in = snapshotFile.openRead();
+            client.readLists(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Bad snapshot, we'll have to reload the lists", e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Maps the snapshot file so we can show lists from it without reading the whole thing (see
+     * {@link #ensureListsLoaded()}).  Falls back to reading the whole thing if it can't be mapped.
+     */
+    private void mapLists() {
+        if (!snapshotFile.getBaseFile().exists()) return;
+        try {
+            snapshotFile.openRead().close(); // recovers the snapshot if a write of it was interrupted
+            mappedLists = new MappedTreeSnapshot(snapshotFile.getBaseFile());
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't map the snapshot, reading it instead", e);
+            restoreLists();
+        }
+    }
+
+    private synchronized void unmapLists() {
+        if (mappedLists == null) return;
+        try {
+            mappedLists.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't close the mapped snapshot", e);
+        }
+        mappedLists = null;
+        invalidateWidgetViews(); // they were showing the snapshot's lists
+    }
+
+    /**
+     * Makes sure the client has the whole tree (rather than us reading lists from the mapped
+     * snapshot), which it needs to change or sync it.
+     */
+    private synchronized void ensureListsLoaded() {
+        if (mappedLists == null) return;
+        unmapLists();
+        restoreLists();
+    }
+
     public void refresh() throws IOException, BadLoginException {
         if (!isConfigured()) {
             Log.e(TAG, "Got an refresh request when we're not configured, ignoring...");
             return;
         }
+        boolean upToDate = false;
         try {
             if (!client.isLoggedIn()) {
                 client.login(getConfiguredUsername(), getConfiguredPassword());
             }
             // TODO: maybe make refresh do the full login juju, or logout the client and log it in again here
-            client.refresh();
+            // a poll's all it takes to find out there's nothing to do, without reading in the snapshot
+            upToDate = hasLists() && client.isUpToDate();
+            if (upToDate) {
+                Log.i(TAG, "Nothing's changed since the last refresh, skipping it...");
+                return;
+            }
+            ensureListsLoaded();
+            client.sync();
         } finally {
-            backupSession();
+            if (!upToDate) backupSession(); // (if it is there's nothing new to save)
         }
     }
 
+    private boolean hasLists() {
+        return mappedLists != null || client.getRootLists() != null;
+    }
+
     public String getConfiguredUsername() {
         return globalPrefs.getString(USERNAME_PREF, "");
     }
@@ -134,7 +300,12 @@ public class WFModel {
         globalPrefs.edit()
                 .putString(USERNAME_PREF, username == null ? "" : username)
                 .putString(PW_PREF, password == null ? "" : password)
-                .commit();
+                .apply();
+        synchronized (widgetPrefsCache) {
+            for (Integer appWidgetId : widgetPrefsCache.keySet()) {
+                redraws.request(appWidgetId, WidgetRedraws.Part.ALL); // they show the login panel or not
+            }
+        }
     }
 
     public void ensureAppWidgets(Collection<Integer> widgetIds) {
@@ -145,6 +316,7 @@ public class WFModel {
             WidgetPreferences prefs = getPrefsForWidget(appWidgetId);
             if (prefs == null) {
                 toPut.put(appWidgetId, new WidgetPreferences());
+                redraws.request(appWidgetId, WidgetRedraws.Part.ALL);
             }
         }
 
@@ -153,7 +325,7 @@ public class WFModel {
             for (Map.Entry<Integer, WidgetPreferences> e : toPut.entrySet()) {
                 setPrefsForWidget(e.getKey(), e.getValue(), editor);
             }
-            editor.commit();
+            editor.apply();
         }
     }
 
@@ -165,17 +337,21 @@ public class WFModel {
         SharedPreferences.Editor editor = widgetPrefs.edit();
         for (Integer appWidgetId : widgetIds) {
             setPrefsForWidget(appWidgetId, null, editor);
+            invalidateWidgetView(appWidgetId);
+            redraws.forget(appWidgetId);
             if (appWidgetId.equals(voiceCommandWidget)) {
                 setWidgetForVoiceCommands(null);
             }
         }
-        editor.commit();
+        editor.apply();
     }
 
     public void setWidgetList(int appWidgetId, String listId) {
         WidgetPreferences prefs = getPrefsForWidget(appWidgetId);
         prefs.listId = listId == null ? "" : listId; // null or empty listid implies root
         setPrefsForWidget(appWidgetId, prefs, null);
+        invalidateWidgetView(appWidgetId);
+        redraws.request(appWidgetId, WidgetRedraws.Part.ALL);
     }
 
     public WFList getWidgetParentList(int appWidgetId) {
@@ -183,7 +359,7 @@ public class WFModel {
         if (listId == null || listId.isEmpty()) { // no setting or empty string implies root lists
             return null;
         }
-        return client.isLoggedIn() ? client.getListById(listId) : null;
+        return getListById(listId);
     }
 
     public boolean isShowCompleted(int appWidgetId) {
@@ -195,91 +371,169 @@ public class WFModel {
         WidgetPreferences prefs = getPrefsForWidget(appWidgetId);
         prefs.showCompletedItems = showCompleted;
         setPrefsForWidget(appWidgetId, prefs, null);
-        return;
+        invalidateWidgetView(appWidgetId);
+        redraws.request(appWidgetId, WidgetRedraws.Part.ROWS);
+    }
+
+    /**
+     * Hands back (and forgets) which widgets need redrawing, and which parts of them, because of
+     * changes to the lists or their settings since this was last called.
+     */
+    public Map<Integer, Set<WidgetRedraws.Part>> takeRedraws() {
+        return redraws.take();
     }
 
+    /**
+     * Returns the widget that voice commands add to: the one that's been set, or if none has the
+     * one with the lowest id (the oldest, since ids are handed out in increasing order).
+     */
     public int getWidgetForVoiceCommands() {
-        // if we don't have an explicit one set, just take the first one
         int voiceReceiver = globalPrefs.getInt(VOICE_RECEIVER_PREF, AppWidgetManager.INVALID_APPWIDGET_ID);
         if (voiceReceiver != AppWidgetManager.INVALID_APPWIDGET_ID) return voiceReceiver;
-        for (String prefKey : widgetPrefs.getAll().keySet()) {
-            return Integer.parseInt(prefKey.replace(WIDGET_PREF_PREFIX, ""));
+        synchronized (widgetPrefsCache) { // (a TreeMap, so its keys are in order)
+            return Iterables.getFirst(widgetPrefsCache.keySet(), AppWidgetManager.INVALID_APPWIDGET_ID);
         }
-        return AppWidgetManager.INVALID_APPWIDGET_ID;
     }
 
     public void setWidgetForVoiceCommands(@Nullable Integer appWidgetId) {
         if (appWidgetId == null || appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
-            globalPrefs.edit().remove(VOICE_RECEIVER_PREF).commit();
+            globalPrefs.edit().remove(VOICE_RECEIVER_PREF).apply();
         } else {
-            globalPrefs.edit().putInt(VOICE_RECEIVER_PREF, appWidgetId).commit();
+            globalPrefs.edit().putInt(VOICE_RECEIVER_PREF, appWidgetId).apply();
         }
     }
 
+    /**
+     * Returns the lists the given widget shows.  They're worked out once and kept until the tree or
+     * the widget's preferences change, since the widget's factory asks for them for every row.
+     */
     public List<WFList> getListsForWidget(int appWidgetId) {
         if (!client.isLoggedIn()) return Collections.emptyList();
+        long generation;
+        synchronized (widgetViews) {
+            WidgetView view = widgetViews.get(appWidgetId);
+            if (view != null) return view.lists;
+            generation = widgetViewsGeneration;
+        }
+
+        WidgetView view = buildWidgetView(appWidgetId);
+        synchronized (widgetViews) {
+            if (generation == widgetViewsGeneration) widgetViews.put(appWidgetId, view);
+        }
+        return view.lists;
+    }
+
+    private WidgetView buildWidgetView(int appWidgetId) {
+        WidgetPreferences prefs = getPrefsForWidget(appWidgetId);
         WFList parent = getWidgetParentList(appWidgetId);
         boolean showCompleted = isShowCompleted(appWidgetId);
         // null parent implies root lists (or not logged in)
         List<WFList> lists = parent == null ? getRootLists() : parent.getChildren();
         if (lists == null) lists = Collections.emptyList();
 
-        List<WFList> toReturn = Lists.newArrayList();
+        ImmutableList.Builder<WFList> toShow = ImmutableList.builder();
         for (WFList l : lists) {
             if (showCompleted || !l.isComplete()) {
-                toReturn.add(l);
+                toShow.add(l);
             }
         }
-        return toReturn;
+        String configuredId = prefs.listId == null || prefs.listId.isEmpty() ? TreeDiff.ROOT_LISTS_ID : prefs.listId;
+        return new WidgetView(configuredId, parent == null ? TreeDiff.ROOT_LISTS_ID : parent.getId(), toShow.build());
+    }
+
+    private void invalidateWidgetViews() {
+        synchronized (widgetViews) {
+            widgetViews.clear();
+            widgetViewsGeneration++;
+        }
+    }
+
+    private void invalidateWidgetView(int appWidgetId) {
+        synchronized (widgetViews) {
+            widgetViews.remove(appWidgetId);
+            widgetViewsGeneration++;
+        }
     }
 
+    /**
+     * Forgets the views of the widgets showing lists that the given changes touched.
+     */
+    private void invalidateWidgetViews(List<TreeChangeEvent> events) {
+        synchronized (widgetViews) {
+            widgetViewsGeneration++;
+            Iterator<WidgetView> views = widgetViews.values().iterator();
+            while (views.hasNext()) {
+                WidgetView view = views.next();
+                for (TreeChangeEvent event : events) {
+                    if (view.dependsOn(event)) {
+                        views.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // the readers use the mapped snapshot if we've still got it
+
     public List<WFList> getRootLists() {
-        return client.isLoggedIn() ? client.getRootLists() : Collections.<WFList>emptyList();
+        if (!client.isLoggedIn()) return Collections.emptyList();
+        MappedTreeSnapshot mapped = mappedLists;
+        return mapped != null ? mapped.getRootLists() : client.getRootLists();
     }
 
     public WFList getListById(String listId) {
-        return client.isLoggedIn() ? client.getListById(listId) : null;
+        if (!client.isLoggedIn()) return null;
+        MappedTreeSnapshot mapped = mappedLists;
+        return mapped != null ? mapped.getListById(listId) : client.getListById(listId);
     }
 
     public WFList getParentList(WFList child) {
-        return client.isLoggedIn() ? client.getParentList(child) : null;
+        if (!client.isLoggedIn()) return null;
+        MappedTreeSnapshot mapped = mappedLists;
+        return mapped != null ? mapped.getParentList(child) : client.getParentList(child);
     }
 
     public List<WFList> getAncestryPath(WFList list) {
-        return client.isLoggedIn() ? client.getAncestryPath(list) : null;
+        if (!client.isLoggedIn()) return null;
+        MappedTreeSnapshot mapped = mappedLists;
+        return mapped != null ? mapped.getAncestryPath(list) : client.getAncestryPath(list);
     }
 
-    public void addItem(int appWidgetId, String name, String description) throws IOException {
-        try {
-            client.createList(getWidgetParentList(appWidgetId), 0, name, description);
-        } finally {
-            backupSession();
-        }
+    // the mutators don't need to back up the session, the client journals their operations.  They
+    // change the tree (and so the widgets) right away and hand back a future for the server's
+    // confirmation: it fails with a PushRejectedException if the server refused it (the client drops
+    // it and the next refresh undoes it), with anything else if the push didn't get through (the
+    // change stays queued and will be pushed later), or is cancelled if the list it's about has gone
+    // (like when it was deleted somewhere else before we got to it) or we've logged out.
+
+    public ListenableFuture<WFList> addItem(int appWidgetId, String name, String description) {
+        ensureListsLoaded();
+        return client.createListAsync(getWidgetParentList(appWidgetId), 0, name, description);
     }
 
-    public void editItem(String listId, String name, String description) throws IOException {
-        try {
-            client.editList(client.getListById(listId), name, description);
-        } finally {
-            backupSession();
-        }
+    public ListenableFuture<Void> editItem(String listId, String name, String description) {
+        ensureListsLoaded();
+        WFList list = getListToChange(listId);
+        return list == null ? Futures.<Void>immediateCancelledFuture() : client.editListAsync(list, name, description);
     }
 
-    public void completeItem(String listId, boolean state) throws IOException {
-        try {
-            client.completeList(client.getListById(listId), state);
-        } finally {
-            backupSession();
-        }
+    public ListenableFuture<Void> completeItem(String listId, boolean state) {
+        ensureListsLoaded();
+        WFList list = getListToChange(listId);
+        return list == null ? Futures.<Void>immediateCancelledFuture() : client.completeListAsync(list, state);
+    }
 
+    public ListenableFuture<Void> deleteItem(String listId) {
+        ensureListsLoaded();
+        WFList list = getListToChange(listId);
+        return list == null ? Futures.<Void>immediateCancelledFuture() : client.deleteListAsync(list);
     }
 
-    public void deleteItem(String listId) throws IOException {
-        try {
-            client.deleteList(client.getListById(listId));
-        } finally {
-            backupSession();
-        }
+    private WFList getListToChange(String listId) {
+        WFList list = client.getListById(listId);
+        if (list == null) Log.w(TAG, "List " + listId + " is gone, not changing it");
+        return list;
     }
 
     @Override
@@ -291,25 +545,99 @@ public class WFModel {
                 .toString();
     }
 
+    private void loadWidgetPrefs() {
+        for (Map.Entry<String, ?> e : widgetPrefs.getAll().entrySet()) {
+            if (!e.getKey().startsWith(WIDGET_PREF_PREFIX) || !(e.getValue() instanceof String)) continue;
+            try {
+                int appWidgetId = Integer.parseInt(e.getKey().substring(WIDGET_PREF_PREFIX.length()));
+                WidgetPreferences prefs = gson.fromJson((String) e.getValue(), WidgetPreferences.class);
+                if (prefs != null) widgetPrefsCache.put(appWidgetId, prefs);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Bad widget preferences for " + e.getKey() + ": " + e.getValue(), ex);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the given widget's preferences (null if it doesn't have any), to be changed
+     * and handed back to {@link #setPrefsForWidget}.
+     */
     private WidgetPreferences getPrefsForWidget(int appWidgetId) {
-        String serialized = widgetPrefs.getString(WIDGET_PREF_PREFIX + appWidgetId, null);
-        if (serialized == null) return null;
-        return gson.fromJson(serialized, WidgetPreferences.class);
+        synchronized (widgetPrefsCache) {
+            WidgetPreferences prefs = widgetPrefsCache.get(appWidgetId);
+            return prefs == null ? null : prefs.copy();
+        }
     }
 
+    /**
+     * Sets the given widget's preferences in memory right away, and on disk in the background
+     * (with the rest of the given edits, if there are any, once they're applied).
+     */
     private void setPrefsForWidget(int appWidgetId, @Nullable WidgetPreferences prefs, @Nullable SharedPreferences.Editor openEdits) {
+        synchronized (widgetPrefsCache) {
+            if (prefs == null) {
+                widgetPrefsCache.remove(appWidgetId);
+            } else {
+                widgetPrefsCache.put(appWidgetId, prefs.copy());
+            }
+        }
         SharedPreferences.Editor edits = openEdits == null ? widgetPrefs.edit() : openEdits;
         if (prefs == null) {
             edits.remove(WIDGET_PREF_PREFIX + appWidgetId);
         } else {
             edits.putString(WIDGET_PREF_PREFIX + appWidgetId, gson.toJson(prefs));
         }
-        if (openEdits == null) edits.commit();
+        if (openEdits == null) edits.apply();
+    }
+
+    private void requestRedraws(List<TreeChangeEvent> events) {
+        Map<Integer, String> listIds = Maps.newHashMap();
+        synchronized (widgetPrefsCache) {
+            for (Map.Entry<Integer, WidgetPreferences> e : widgetPrefsCache.entrySet()) {
+                String listId = e.getValue().listId;
+                listIds.put(e.getKey(), listId == null || listId.isEmpty() ? TreeDiff.ROOT_LISTS_ID : listId);
+            }
+        }
+        for (Map.Entry<Integer, String> e : listIds.entrySet()) {
+            boolean exists = TreeDiff.ROOT_LISTS_ID.equals(e.getValue()) || getListById(e.getValue()) != null;
+            for (TreeChangeEvent event : events) {
+                redraws.request(e.getKey(), event, e.getValue(), exists);
+            }
+        }
+    }
+
+    /**
+     * The lists a widget shows, and which lists they depend on.
+     */
+    private static class WidgetView {
+        final String configuredListId; // the list the widget's set to show (which may be gone)
+        final String shownListId; // the list whose children it's showing
+        final List<WFList> lists;
+
+        WidgetView(String configuredListId, String shownListId, List<WFList> lists) {
+            this.configuredListId = configuredListId;
+            this.shownListId = shownListId;
+            this.lists = lists;
+        }
+
+        boolean dependsOn(TreeChangeEvent event) {
+            if (event.affects(shownListId) || event.affects(configuredListId)) return true;
+            // if the list it's set to show wasn't there it could have turned up anywhere
+            return !shownListId.equals(configuredListId) && event.getChanges().getAdded().contains(configuredListId);
+        }
     }
 
     public static class WidgetPreferences {
         public String listId; // no setting or empty string implies root lists
         public Boolean showCompletedItems;
         public Boolean disableVoiceCommands;
+
+        WidgetPreferences copy() {
+            WidgetPreferences copy = new WidgetPreferences();
+            copy.listId = listId;
+            copy.showCompletedItems = showCompletedItems;
+            copy.disableVoiceCommands = disableVoiceCommands;
+            return copy;
+        }
     }
 }
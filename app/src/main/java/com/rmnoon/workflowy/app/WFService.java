@@ -1,32 +1,53 @@
 package com.rmnoon.workflowy.app;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.appwidget.AppWidgetManager;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.rmnoon.workflowy.client.BadLoginException;
-
-import static com.rmnoon.workflowy.app.AppWidgetUtils.*;
+import com.rmnoon.workflowy.client.PushRejectedException;
 
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The worker service for the app.  Handles all long-running requests.  Use
  * {@link AppWidgetUtils#enqueueForService} to send it work to do (using the action names [and extra
  * fields if necessary] specified as constants in this class).
  *
+ * Requests are handled on a few background threads (see {@link PriorityWorkQueue}): changes the
+ * user made go ahead of refreshes that haven't started yet and don't wait for ones that have,
+ * changes to the same list are handled in the order they came in, and only a couple of requests
+ * are ever on the network at once.  The service stops itself once it's out of work.
+ *
+ * Changes show up in the widgets as soon as they're made, before the server's confirmed them; if
+ * the server refuses one they're rolled back (see {@link #reportWhenConfirmed}).
+ *
  * Created by rmnoon on 5/25/16.
  */
-public class WFService extends IntentService {
+public class WFService extends Service {
 
     private static final String TAG = WFService.class.getName();
 
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+
     public static final String REFRESH_ACTION = "REFRESH_ACTION";
     public static final String REFRESH_EXTRA_MODE = "REFRESH_EXTRA_MODE";
     public static final String REFRESH_MODE_SILENT = "REFRESH_MODE_SILENT";
+    private static final String REFRESH_EXTRA_REQUEST_NUM = "REFRESH_EXTRA_REQUEST_NUM";
 
     public static final String ADD_ITEM_ACTION = "ADD_ITEM_ACTION";
     public static final String ADD_ITEM_EXTRA_NAME = "ADD_ITEM_EXTRA_NAME";
@@ -46,22 +67,104 @@ public class WFService extends IntentService {
     public static final String DELETE_ITEM_ACTION = "DELETE_ITEM_ACTION";
     public static final String DELETE_ITEM_EXTRA_LISTID = "DELETE_ITEM_EXTRA_LISTID";
 
+    // refresh requests are numbered as they arrive, so that ones that were queued up behind a refresh
+    // that started after they arrived (and so already did what they're asking for) can be dropped
+    private static final AtomicLong refreshRequests = new AtomicLong();
+    private static volatile long refreshedThrough; // the last request number covered by a refresh
+    private static final AtomicBoolean nonSilentRefreshRequested = new AtomicBoolean();
+    private static final AtomicReference<Throwable> lastReportedFailure = new AtomicReference<>(); // see reportWhenConfirmed
+
     private WFModel model;
+    private PriorityWorkQueue work;
+    private volatile int lastStartId;
 
     public WFService() {
-        super(WFService.class.getName());
         model = WFModel.getInstance(this);
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public void onCreate() {
+        super.onCreate();
+        work = new PriorityWorkQueue(WFService.class.getSimpleName(), MAX_CONCURRENT_REQUESTS, new Runnable() {
+            @Override
+            public void run() {
+                stopSelf(lastStartId); // (unless something's come in since)
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        if (intent == null) {
+            if (work.isIdle()) stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        if (REFRESH_ACTION.equals(intent.getAction())) {
+            intent.putExtra(REFRESH_EXTRA_REQUEST_NUM, refreshRequests.incrementAndGet());
+            if (!REFRESH_MODE_SILENT.equals(intent.getStringExtra(REFRESH_EXTRA_MODE))) {
+                nonSilentRefreshRequested.set(true);
+            }
+        }
+        work.submit(getLane(intent), getOrderingKey(intent), new Runnable() {
+            @Override
+            public void run() {
+                handleIntent(intent);
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        work.shutdown();
+        model.flushWrites(); // we're out of work, and the process could be reclaimed now
+        super.onDestroy();
+    }
+
+    private static PriorityWorkQueue.Lane getLane(Intent intent) {
+        return REFRESH_ACTION.equals(intent.getAction()) ? PriorityWorkQueue.Lane.BACKGROUND : PriorityWorkQueue.Lane.USER;
+    }
+
+    /**
+     * Returns what the request has to be kept in order with: other requests about the same list
+     * (or for additions, to the same widget).
+     */
+    private static String getOrderingKey(Intent intent) {
+        switch (intent.getAction()) {
+            case ADD_ITEM_ACTION:
+                return "widget:" + intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            case EDIT_ITEM_ACTION:
+                return "list:" + intent.getStringExtra(EDIT_ITEM_EXTRA_LISTID);
+            case COMPLETE_ITEM_ACTION:
+                return "list:" + intent.getStringExtra(COMPLETE_ITEM_EXTRA_LISTID);
+            case DELETE_ITEM_ACTION:
+                return "list:" + intent.getStringExtra(DELETE_ITEM_EXTRA_LISTID);
+            default:
+                return null;
+        }
+    }
+
+    private void handleIntent(Intent intent) {
         Log.i(TAG, "action received: " + intent.getAction());
         int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
 
         switch (intent.getAction()) {
             case REFRESH_ACTION:
-                String mode = intent.getStringExtra(REFRESH_EXTRA_MODE);
-                doRefreshAction(REFRESH_MODE_SILENT.equals(mode));
+                long requestNum = intent.getLongExtra(REFRESH_EXTRA_REQUEST_NUM, 0);
+                if (requestNum != 0 && requestNum <= refreshedThrough) {
+                    Log.i(TAG, "refresh request " + requestNum + " was covered by a later refresh, dropping it...");
+                    return;
+                }
+                refreshedThrough = refreshRequests.get();
+                // silent unless any of the requests this covers wanted to hear about it
+                doRefreshAction(!nonSilentRefreshRequested.getAndSet(false));
                 break;
             case ADD_ITEM_ACTION:
                 String addItemName = intent.getStringExtra(ADD_ITEM_EXTRA_NAME);
@@ -88,16 +191,20 @@ public class WFService extends IntentService {
                 return;
         }
 
-        fireEvent(this, appWidgetId, WorkflowyListWidget.REDRAW_EVENT, WorkflowyListWidget.class, null, null);
+        RedrawCoordinator.getInstance(this).requestRedraw(); // (along with whatever else finishes around now)
+    }
+
+    private void toastUser(int resId, boolean important) {
+        toastUser(getApplicationContext(), resId, important);
     }
 
-    private void toastUser(final int resId, final boolean important) {
+    private static void toastUser(final Context appContext, final int resId, final boolean important) {
         // create a handler to post messages to the main thread
-        Handler mHandler = new Handler(getMainLooper());
+        Handler mHandler = new Handler(appContext.getMainLooper());
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                Toast.makeText(getApplicationContext(), resId, important ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
+                Toast.makeText(appContext, resId, important ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
             }
         });
     }
@@ -117,42 +224,64 @@ public class WFService extends IntentService {
     }
 
     private void doAddItemAction(int appWidgetId, String name, String desc) {
-        try {
-            model.addItem(appWidgetId, name, desc);
-            toastUser(R.string.item_added, false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            toastUser(R.string.item_added_local, true);
-        }
+        reportWhenConfirmed(model.addItem(appWidgetId, name, desc), R.string.item_added, R.string.item_added_local);
     }
 
     private void doEditItemAction(String listId, String name, String desc) {
-        try {
-            model.editItem(listId, name, desc);
-            toastUser(R.string.item_edited, false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            toastUser(R.string.item_edited_local, true);
-        }
+        reportWhenConfirmed(model.editItem(listId, name, desc), R.string.item_edited, R.string.item_edited_local);
     }
 
     private void doCompleteItemAction(String listId, boolean state) {
-        try {
-            model.completeItem(listId, state);
-            toastUser(state ? R.string.item_completed : R.string.item_uncompleted, false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            toastUser(state ? R.string.item_completed_local : R.string.item_uncompleted_local, true);
-        }
+        reportWhenConfirmed(model.completeItem(listId, state),
+                state ? R.string.item_completed : R.string.item_uncompleted,
+                state ? R.string.item_completed_local : R.string.item_uncompleted_local);
     }
 
     private void doDeleteItemAction(String listId) {
-        try {
-            model.deleteItem(listId);
-            toastUser(R.string.item_deleted, false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            toastUser(R.string.item_deleted_local, true);
-        }
+        reportWhenConfirmed(model.deleteItem(listId), R.string.item_deleted, R.string.item_deleted_local);
+    }
+
+    /**
+     * The change is already in the tree (and is redrawn once we're done handling the request), so
+     * all that's left is to tell the user how it went with the server: confirmed, not pushed yet
+     * (it'll be retried), or refused, in which case the client's dropped it and we refresh to undo
+     * it in the widgets.  Every change in a push fails with the same exception, so each failure is
+     * only reported once however many changes were in it.
+     *
+     * The server can take longer to answer than we take to run out of work and stop, so the callback
+     * only uses the application context, never this service.
+     */
+    private void reportWhenConfirmed(ListenableFuture<?> confirmation, final int confirmedResId, final int localResId) {
+        final Context appContext = getApplicationContext();
+        Futures.addCallback(confirmation, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                toastUser(appContext, confirmedResId, false);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof CancellationException) {
+                    return; // the list was gone (or we logged out), there's nothing to report
+                }
+                if (lastReportedFailure.getAndSet(t) == t) {
+                    return; // another change in the same push already reported it
+                }
+                if (!(t instanceof PushRejectedException)) {
+                    Log.w(TAG, "Couldn't push changes, they're queued for later", t);
+                    toastUser(appContext, localResId, true);
+                    return;
+                }
+                Log.e(TAG, "The server refused our changes", t);
+                toastUser(appContext, R.string.change_rejected, true);
+                AppWidgetUtils.enqueueForService(
+                        appContext,
+                        WFService.class,
+                        AppWidgetManager.INVALID_APPWIDGET_ID,
+                        REFRESH_ACTION,
+                        ImmutableMap.of(REFRESH_EXTRA_MODE, REFRESH_MODE_SILENT)
+                );
+            }
+        }, MoreExecutors.directExecutor());
     }
 }
@@ -0,0 +1,67 @@
+package com.rmnoon.workflowy.app;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.rmnoon.workflowy.client.TreeChangeEvent;
+import com.rmnoon.workflowy.client.TreeDiff;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which widgets need redrawing since they were last drawn, and which parts of them,
+ * so that a change only redraws the widgets it shows up in.
+ */
+public class WidgetRedraws {
+
+    public enum Part {
+        /** Just the list name at the top (which can be updated in place). */
+        HEADER,
+        /** The list items (so the widget's list adapter should be told its data changed). */
+        ROWS,
+        /** Everything (the whole widget has to be drawn again). */
+        ALL
+    }
+
+    private final Map<Integer, EnumSet<Part>> pending = Maps.newTreeMap();
+
+    public synchronized void request(int appWidgetId, Part part) {
+        EnumSet<Part> parts = pending.get(appWidgetId);
+        if (parts == null) {
+            pending.put(appWidgetId, EnumSet.of(part));
+        } else {
+            parts.add(part);
+        }
+    }
+
+    public synchronized void forget(int appWidgetId) {
+        pending.remove(appWidgetId);
+    }
+
+    /**
+     * Hands back (and forgets) what's needed redrawing since the last time this was called.
+     * @return the parts to redraw by widget id
+     */
+    public synchronized Map<Integer, Set<Part>> take() {
+        Map<Integer, Set<Part>> taken = ImmutableMap.<Integer, Set<Part>>copyOf(pending);
+        pending.clear();
+        return taken;
+    }
+
+    /**
+     * Requests whatever redraws a tree change means for a widget that's set to show the given list.
+     * @param listId the list the widget's set to show ({@link TreeDiff#ROOT_LISTS_ID} for the root lists)
+     * @param listExists whether that list is in the tree now (if not the widget shows the root lists)
+     */
+    public void request(int appWidgetId, TreeChangeEvent event, String listId, boolean listExists) {
+        TreeDiff changes = event.getChanges();
+        if (changes == null || changes.getRemoved().contains(listId) || changes.getAdded().contains(listId)) {
+            request(appWidgetId, Part.ALL); // (if it's there it might be switching between its list and the root lists)
+            return;
+        }
+        String shownId = listExists ? listId : TreeDiff.ROOT_LISTS_ID;
+        if (changes.getChangedParents().contains(shownId)) request(appWidgetId, Part.ROWS);
+        if (changes.getEdited().contains(shownId)) request(appWidgetId, Part.HEADER);
+    }
+}
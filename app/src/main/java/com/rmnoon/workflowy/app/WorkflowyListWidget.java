@@ -24,6 +24,8 @@ import com.rmnoon.workflowy.app.dialog.LoginDialogActivity;
 import com.rmnoon.workflowy.client.WFList;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 
 import static com.rmnoon.workflowy.app.AppWidgetUtils.*;
 
@@ -60,13 +62,10 @@ public class WorkflowyListWidget extends AppWidgetProvider {
 
     private static void drawWidget(Context context, int appWidgetId) {
         WFModel model = WFModel.getInstance(context);
-        WFList parentList = model.getWidgetParentList(appWidgetId);
-        String listName = parentList == null ? model.getConfiguredUsername() : parentList.getName();
-
-        Log.i(TAG, "Drawing widget: " + appWidgetId + ", \"" + listName + "\"");
+        Log.i(TAG, "Drawing widget: " + appWidgetId);
 
         RemoteViews rv = new RemoteViews(context.getPackageName(), R.layout.widget);
-        rv.setTextViewText(R.id.list_name_button, Html.fromHtml(listName == null ? "" : listName));
+        drawHeader(context, rv, appWidgetId);
 
         addAdapter(context, rv, appWidgetId, R.id.list_items, null, WFListViewService.class);
         addListListener(context, rv, appWidgetId, R.id.list_items, LIST_ITEM_PRESS_EVENT, WorkflowyListWidget.class);
@@ -83,6 +82,13 @@ public class WorkflowyListWidget extends AppWidgetProvider {
         AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, rv);
     }
 
+    private static void drawHeader(Context context, RemoteViews rv, int appWidgetId) {
+        WFModel model = WFModel.getInstance(context);
+        WFList parentList = model.getWidgetParentList(appWidgetId);
+        CharSequence listName = parentList == null ? Html.fromHtml(model.getConfiguredUsername()) : ListText.getName(parentList);
+        rv.setTextViewText(R.id.list_name_button, listName);
+    }
+
     private static void doSilentRefresh(Context context) {
         enqueueForService(
                 context,
@@ -94,7 +100,9 @@ public class WorkflowyListWidget extends AppWidgetProvider {
     }
 
     private static void redrawWidgets(Context context) {
-        WFModel.getInstance(context).ensureAppWidgets(Ints.asList(getAppWidgetIds(context)));
+        WFModel model = WFModel.getInstance(context);
+        model.ensureAppWidgets(Ints.asList(getAppWidgetIds(context)));
+        model.takeRedraws(); // we're about to do all of them
         notifyListItemsChanged(context);
 
         for (int appWidgetId : getAppWidgetIds(context)) {
@@ -102,6 +110,34 @@ public class WorkflowyListWidget extends AppWidgetProvider {
         }
     }
 
+    /**
+     * Redraws just the widgets (and just the parts of them) that have changed since they were last
+     * drawn.  Use {@link RedrawCoordinator#requestRedraw()} rather than calling this directly.
+     */
+    static void redrawChangedWidgets(Context context) {
+        Map<Integer, Set<WidgetRedraws.Part>> redraws = WFModel.getInstance(context).takeRedraws();
+        if (redraws.isEmpty()) return;
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        for (int appWidgetId : getAppWidgetIds(context)) {
+            Set<WidgetRedraws.Part> parts = redraws.get(appWidgetId);
+            if (parts == null) continue;
+            if (parts.contains(WidgetRedraws.Part.ALL)) {
+                drawWidget(context, appWidgetId);
+                manager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.list_items);
+                continue;
+            }
+            if (parts.contains(WidgetRedraws.Part.HEADER)) {
+                Log.i(TAG, "Redrawing the header of widget: " + appWidgetId);
+                RemoteViews rv = new RemoteViews(context.getPackageName(), R.layout.widget);
+                drawHeader(context, rv, appWidgetId);
+                manager.partiallyUpdateAppWidget(appWidgetId, rv);
+            }
+            if (parts.contains(WidgetRedraws.Part.ROWS)) {
+                manager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.list_items);
+            }
+        }
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         super.onReceive(context, intent);
@@ -121,7 +157,7 @@ public class WorkflowyListWidget extends AppWidgetProvider {
                 }
                 break;
             case REDRAW_EVENT:
-                // do nothing since we redraw on all events anyway
+                // do nothing since we redraw whatever's changed after all events anyway
                 break;
             case REFRESH_EVENT:
                 enqueueForService(
@@ -200,7 +236,7 @@ public class WorkflowyListWidget extends AppWidgetProvider {
                 return;
         }
 
-        redrawWidgets(context);
+        RedrawCoordinator.getInstance(context).requestRedraw();
     }
 
     @Override
@@ -224,14 +260,16 @@ public class WorkflowyListWidget extends AppWidgetProvider {
         super.onDeleted(context, appWidgetIds);
         Log.i(TAG, "onDeleted: " + Arrays.toString(appWidgetIds));
         WFModel.getInstance(context).forgetAppWidgets(Ints.asList(appWidgetIds));
-        redrawWidgets(context);
+        RedrawCoordinator.getInstance(context).requestRedraw(); // the others aren't affected
     }
 
     @Override
     public void onDisabled(Context context) {
         super.onDisabled(context);
         Log.i(TAG, "onDisabled");
-        WFModel.getInstance(context).backupSession();
+        WFModel model = WFModel.getInstance(context);
+        model.backupSession();
+        model.flushWrites(); // the last widget's gone, so we might be too before long
     }
 
     @Override
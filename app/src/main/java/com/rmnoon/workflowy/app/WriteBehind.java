@@ -0,0 +1,85 @@
+package com.rmnoon.workflowy.app;
+
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does the app's slow writes (like saving the session) on a background thread rather than on
+ * whatever thread asked for them.  Writes are marked dirty under a key and coalesced: if the same
+ * key's marked again before it's written only the latest write happens.  Everything that's dirty is
+ * written at most the given delay after the first of it was marked, or right away by {@link #flush()},
+ * which should be called wherever the process might be about to go away.
+ */
+class WriteBehind {
+
+    private static final String TAG = WriteBehind.class.getName();
+
+    private final long maxDelayMs;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Runnable> dirty = Maps.newLinkedHashMap(); // the writes to do, by key
+    private ScheduledFuture<?> scheduledFlush;
+    private final Object writeLock = new Object(); // held while writing, so flushes happen one at a time
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param name what to name the background thread
+     * @param maxDelayMs the longest a write waits before it's done
+     */
+    WriteBehind(String name, long maxDelayMs) {
+        this.maxDelayMs = maxDelayMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(name + "-%d")
+                .build());
+    }
+
+    /**
+     * Queues a write, replacing whatever write was queued under the same key.
+     */
+    synchronized void markDirty(String key, Runnable write) {
+        dirty.put(key, write);
+        if (scheduledFlush == null) {
+            scheduledFlush = executor.schedule(flushTask, maxDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Does every queued write in this thread, returning once they're done.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            List<Map.Entry<String, Runnable>> toWrite;
+            synchronized (this) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                toWrite = ImmutableList.copyOf(dirty.entrySet());
+                dirty.clear();
+            }
+            for (Map.Entry<String, Runnable> write : toWrite) {
+                try {
+                    write.getValue().run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Write of " + write.getKey() + " failed", e);
+                }
+            }
+        }
+    }
+}
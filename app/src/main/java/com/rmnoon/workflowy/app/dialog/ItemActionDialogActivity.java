@@ -15,6 +15,7 @@ import android.widget.TextView;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.rmnoon.workflowy.app.AppWidgetUtils;
+import com.rmnoon.workflowy.app.ListText;
 import com.rmnoon.workflowy.app.R;
 import com.rmnoon.workflowy.app.WFModel;
 import com.rmnoon.workflowy.app.WFService;
@@ -64,7 +65,7 @@ public class ItemActionDialogActivity extends Activity {
 
         TextView itemDesc = ((TextView)findViewById(R.id.item_desc));
         itemDesc.setVisibility(item.getDescription() == null || item.getDescription().isEmpty() ? View.GONE : View.VISIBLE);
-        itemDesc.setText(item.getDescription() == null ? "" : Html.fromHtml(item.getDescription()));
+        itemDesc.setText(ListText.getDescription(item));
 
         ((Button) findViewById(R.id.complete_button)).setText(item.isComplete() ? R.string.uncomplete : R.string.complete);
 
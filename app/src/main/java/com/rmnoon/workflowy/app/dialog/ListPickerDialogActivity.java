@@ -22,6 +22,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.rmnoon.workflowy.app.ListText;
 import com.rmnoon.workflowy.app.R;
 import com.rmnoon.workflowy.app.WFModel;
 import com.rmnoon.workflowy.app.WorkflowyListWidget;
@@ -154,9 +155,8 @@ public class ListPickerDialogActivity extends Activity {
 
             View toUse = convertView != null ? convertView : getLayoutInflater().inflate(R.layout.list_item, parent, false); // false because we can't append to a listview
 
-            String name = list.getName();
             TextView itemNameView = (TextView) toUse.findViewById(R.id.item_name);
-            itemNameView.setText(Html.fromHtml(name == null ? "" : name));
+            itemNameView.setText(ListText.getName(list));
 
             String desc = list.getDescription();
             TextView itemDescView = (TextView) toUse.findViewById(R.id.item_desc);
@@ -164,7 +164,7 @@ public class ListPickerDialogActivity extends Activity {
                 itemDescView.setText("");
                 itemDescView.setVisibility(View.GONE);
             } else {
-                itemDescView.setText(Html.fromHtml(desc));
+                itemDescView.setText(ListText.getDescription(list));
                 itemDescView.setVisibility(View.VISIBLE);
             }
 
@@ -0,0 +1,149 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Queues;
+
+import java.util.Collection;
+import java.util.Deque;
+
+/**
+ * An index from list id to the {@link WFList} object in the tree with that id (and to that list's
+ * parent), so that looking up a list or walking up the tree doesn't require searching the whole
+ * tree.  It's up to whoever mutates the tree to keep the index in sync with it.
+ *
+ * An index isn't thread safe, but it's backed by a {@link PersistentHashMap} so {@link #snapshot()}
+ * can cheaply hand out copies of it that will never change, which can be read from any thread.
+ */
+class ListIndex {
+
+    private PersistentHashMap<String, Entry> entries;
+    private Object edit = new Object(); // lets us update the map in place until we hand out a snapshot
+
+    ListIndex() {
+        this(PersistentHashMap.<String, Entry>empty());
+    }
+
+    private ListIndex(PersistentHashMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Returns a copy of the index as it is now, which later changes to this index won't affect
+     * (and which shouldn't be changed itself if it's shared with other threads).
+     */
+    ListIndex snapshot() {
+        edit = new Object(); // so we'll copy anything the snapshot can see rather than changing it
+        return new ListIndex(entries);
+    }
+
+    /**
+     * Clears the index and re-populates it from the given lists (and all of their descendants).
+     * @param rootLists the lists to index (null indexes nothing)
+     */
+    void rebuild(Collection<WFList> rootLists) {
+        clear();
+        addChildren(null, rootLists);
+    }
+
+    /**
+     * Adds a single list to the index (but not its children).
+     * @param list the list to add
+     * @param parent the list's parent (null for a root list)
+     */
+    void put(WFList list, WFList parent) {
+        entries = entries.plus(list.id, new Entry(list, parent), edit);
+    }
+
+    /**
+     * Adds the given list and all of its descendants to the index.
+     * @param list the list to add
+     * @param parent the list's parent (null for a root list)
+     */
+    void add(WFList list, WFList parent) {
+        put(list, parent);
+        addChildren(list, list.ch);
+    }
+
+    /**
+     * Removes the given list and all of its descendants from the index.
+     * @param list the list to remove
+     */
+    void remove(WFList list) {
+        Deque<WFList> toVisit = Queues.newArrayDeque();
+        toVisit.add(list);
+        while (!toVisit.isEmpty()) {
+            WFList cur = toVisit.remove();
+            entries = entries.minus(cur.id, edit);
+            if (cur.ch != null) toVisit.addAll(cur.ch);
+        }
+    }
+
+    /**
+     * Marks the cached subtree hashes of the given list and all of its ancestors out of date, for
+     * when the list (or which children it has) has changed.  Call it before the list's removed
+     * from the index, since it finds the ancestors through the index.
+     * @param changed the list (null does nothing)
+     */
+    void invalidateSubtreeHashes(WFList changed) {
+        WFList cur = changed;
+        // if a list's hash is already invalid so are its ancestors', so we can stop there
+        while (cur != null && cur.invalidateSubtreeHash()) {
+            cur = getParent(cur.id);
+        }
+    }
+
+    WFList get(String listId) {
+        Entry e = listId == null ? null : entries.get(listId);
+        return e == null ? null : e.list;
+    }
+
+    /**
+     * Returns the parent of the list with the given id, or null if it's a root list (or isn't indexed).
+     */
+    WFList getParent(String listId) {
+        Entry e = listId == null ? null : entries.get(listId);
+        return e == null ? null : e.parent;
+    }
+
+    boolean contains(String listId) {
+        return listId != null && entries.get(listId) != null;
+    }
+
+    boolean isRoot(String listId) {
+        return contains(listId) && getParent(listId) == null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries = PersistentHashMap.empty();
+    }
+
+    private void addChildren(WFList parent, Collection<WFList> children) {
+        if (children == null) return;
+        Deque<WFList> parentsToVisit = Queues.newArrayDeque();
+        for (WFList child : children) {
+            put(child, parent);
+            parentsToVisit.add(child);
+        }
+        while (!parentsToVisit.isEmpty()) {
+            WFList cur = parentsToVisit.remove();
+            if (cur.ch == null) continue;
+            for (WFList child : cur.ch) {
+                put(child, cur);
+                parentsToVisit.add(child);
+            }
+        }
+    }
+
+    private static class Entry {
+        final WFList list;
+        final WFList parent; // null for root lists
+
+        Entry(WFList list, WFList parent) {
+            this.list = list;
+            this.parent = parent;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of a {@link TreeSnapshot} file that's memory mapped rather than read, and only
+ * decodes the lists that are actually asked for (a list's children are decoded as they're
+ * accessed), so showing one list out of a huge account only touches the few pages it's on.
+ *
+ * Lists are looked up by id with a binary search of the snapshot's id table, and parents are found
+ * with a binary search of the node records (since children are numbered in the same order as
+ * their parents).  The {@link WFList}s handed back are cached, so asking for the same list twice
+ * gives the same object, and must not be modified (their children can't be).
+ */
+public class MappedTreeSnapshot implements Closeable {
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buf;
+    private final int nodeCount;
+    private final int rootCount;
+    private final Map<Integer, WFList> decoded = Maps.newHashMap(); // by node number
+    private final Map<String, Integer> nodeNumbers = Maps.newHashMap(); // by id, for what's decoded
+
+    /**
+     * Maps the given snapshot file (just checking its header).
+     * @param file the snapshot, as written by {@link TreeSnapshot#write}
+     * @throws IOException if it can't be mapped or isn't a snapshot we understand
+     */
+    public MappedTreeSnapshot(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            nodeCount = TreeSnapshot.readHeader(buf);
+            rootCount = buf.getInt();
+            if (rootCount < 0 || rootCount > nodeCount || buf.capacity() < TreeSnapshot.HEADER_BYTES + 8L * nodeCount) {
+                throw new IOException("Corrupt snapshot");
+            }
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public synchronized List<WFList> getRootLists() {
+        return new LazyLists(0, rootCount);
+    }
+
+    /**
+     * Returns the list with the given id, or null if it isn't in the snapshot.
+     */
+    public synchronized WFList getListById(String listId) {
+        int nodeNum = findNode(listId);
+        return nodeNum < 0 ? null : getNode(nodeNum);
+    }
+
+    /**
+     * Returns the parent of the given list, or null if it's a root list (or isn't in the snapshot).
+     */
+    public synchronized WFList getParentList(WFList child) {
+        if (child == null) return null;
+        int nodeNum = findNode(child.id);
+        if (nodeNum < rootCount) return null;
+
+        // the parent is the last node whose children start at or before this one
+        int lo = 0, hi = nodeNum - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (readFirstChild(mid) <= nodeNum) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return getNode(lo);
+    }
+
+    /**
+     * Returns the given list and its ancestors, starting from its root list.
+     */
+    public synchronized List<WFList> getAncestryPath(WFList list) {
+        List<WFList> result = Lists.newArrayList();
+        while (list != null) {
+            result.add(list);
+            list = getParentList(list);
+        }
+        return Lists.reverse(result);
+    }
+
+    /**
+     * Returns how many lists have been decoded so far.
+     */
+    synchronized int getDecodedCount() {
+        return decoded.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close(); // the mapping itself goes away when it's garbage collected
+    }
+
+    private WFList getNode(int nodeNum) {
+        WFList node = decoded.get(nodeNum);
+        if (node != null) return node;
+
+        ByteBuffer record = recordAt(nodeNum);
+        node = new WFList();
+        node.id = TreeSnapshot.readString(record);
+        node.nm = TreeSnapshot.readString(record);
+        node.no = TreeSnapshot.readString(record);
+        node.lm = record.getLong();
+        node.cp = record.get() != 0 ? record.getLong() : null;
+        int firstChild = record.getInt();
+        int childCount = record.getInt();
+        if (firstChild < 0 || childCount < 0 || firstChild + childCount > nodeCount) {
+            throw new IllegalStateException("Corrupt snapshot");
+        }
+        node.ch = childCount == 0 ? null : new LazyLists(firstChild, childCount);
+
+        decoded.put(nodeNum, node);
+        nodeNumbers.put(node.id, nodeNum);
+        return node;
+    }
+
+    /**
+     * Finds the number of the node with the given id.
+     * @return the node number, or -1 if there's no such node
+     */
+    private int findNode(String listId) {
+        if (listId == null) return -1;
+        Integer known = nodeNumbers.get(listId);
+        if (known != null) return known;
+
+        int idOrderStart = TreeSnapshot.HEADER_BYTES + 4 * nodeCount;
+        int lo = 0, hi = nodeCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int nodeNum = buf.getInt(idOrderStart + 4 * mid);
+            int cmp = TreeSnapshot.readString(recordAt(nodeNum)).compareTo(listId);
+            if (cmp == 0) return nodeNum;
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int readFirstChild(int nodeNum) {
+        ByteBuffer record = recordAt(nodeNum);
+        for (int i = 0; i < 3; i++) { // skip id, nm and no
+            int length = record.getInt();
+            if (length > 0) record.position(record.position() + length);
+        }
+        record.getLong(); // lm
+        if (record.get() != 0) record.getLong(); // cp
+        return record.getInt();
+    }
+
+    /**
+     * Returns a view of the buffer positioned at the start of the given node's record.
+     */
+    private ByteBuffer recordAt(int nodeNum) {
+        if (nodeNum < 0 || nodeNum >= nodeCount) throw new IllegalStateException("Corrupt snapshot");
+        ByteBuffer record = buf.duplicate();
+        try {
+            record.position(buf.getInt(TreeSnapshot.HEADER_BYTES + 4 * nodeNum));
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IllegalStateException("Corrupt snapshot", e);
+        }
+        return record;
+    }
+
+    /**
+     * A run of sibling lists, decoded as they're accessed.
+     */
+    private class LazyLists extends AbstractList<WFList> {
+        private final int first;
+        private final int count;
+
+        LazyLists(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        public WFList get(int location) {
+            if (location < 0 || location >= count) throw new IndexOutOfBoundsException();
+            synchronized (MappedTreeSnapshot.this) {
+                return getNode(first + location);
+            }
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
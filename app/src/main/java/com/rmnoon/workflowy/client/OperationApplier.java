@@ -0,0 +1,251 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Applies operations that were run on the server (by other clients, or by the server on our
+ * behalf) to our local copy of the tree in place, so we can stay up to date without re-downloading
+ * everything.  Existing {@link WFList} objects are always updated or moved rather than replaced
+ * (just like {@link Utils#getReusedLists}) and the supplied {@link ListIndex} is kept in sync.
+ *
+ * Children are changed copy-on-write (see {@link WFList#ch}), and so should the root lists be if
+ * anyone reads them without a lock (the client's always are).
+ *
+ * Applying an operation we've already applied locally (like one of our own proxy changes) is
+ * harmless: creates of lists we already have and deletes of lists we don't are no-ops, and
+ * everything else just sets the state the operation describes.
+ */
+class OperationApplier {
+
+    static final String ROOT_PARENT_ID = "None"; // the parent id workflowy uses for root lists
+
+    private final List<WFList> rootLists;
+    private final ListIndex index;
+    private final TreeChanges changes; // null if nobody's interested
+
+    OperationApplier(List<WFList> rootLists, ListIndex index) {
+        this(rootLists, index, null);
+    }
+
+    /**
+     * @param changes where to record the changes made (null not to)
+     */
+    OperationApplier(List<WFList> rootLists, ListIndex index, TreeChanges changes) {
+        this.rootLists = rootLists;
+        this.index = index;
+        this.changes = changes;
+    }
+
+    /**
+     * Parses the remote transactions handed back by a push / poll (each of which is either a JSON
+     * string or an already-parsed JSON object, depending on how it was deserialized).
+     * @param gson the gson to parse with
+     * @param transactions the transactions from {@link PushPoll.ResponseResult#concurrent_remote_operation_transactions}
+     * @return the operations in all of the transactions, in order
+     */
+    static List<PushPoll.Operation> parseTransactions(Gson gson, List<Object> transactions) {
+        List<PushPoll.Operation> result = Lists.newArrayList();
+        if (transactions == null) return result;
+        for (Object txnJson : transactions) {
+            result.addAll(parseTransaction(gson, txnJson));
+        }
+        return result;
+    }
+
+    /**
+     * Parses a single transaction, like {@link PushPoll.ResponseResult#server_run_operation_transaction_json}.
+     * @param gson the gson to parse with
+     * @param txnJson the transaction as a JSON string or an already-parsed JSON object (null is empty)
+     * @return the operations in the transaction, in order
+     */
+    static List<PushPoll.Operation> parseTransaction(Gson gson, Object txnJson) {
+        if (txnJson == null) return Lists.newArrayList();
+        PushPoll.RemoteTransaction txn = txnJson instanceof String
+                ? gson.fromJson((String) txnJson, PushPoll.RemoteTransaction.class)
+                : gson.fromJson(gson.toJsonTree(txnJson), PushPoll.RemoteTransaction.class);
+        if (txn == null || txn.ops == null) return Lists.newArrayList();
+        return txn.ops;
+    }
+
+    /**
+     * Applies all of the given operations in order.
+     * @param ops the operations to apply
+     * @return false if any of them couldn't be applied (in which case the tree should be reloaded)
+     */
+    boolean applyAll(List<PushPoll.Operation> ops) {
+        if (ops == null) return true;
+        for (PushPoll.Operation op : ops) {
+            if (!apply(op)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies a single operation to the tree.
+     * @param op the operation to apply
+     * @return false if we don't understand it or it doesn't make sense against our tree
+     */
+    boolean apply(PushPoll.Operation op) {
+        if (op == null || op.type == null || op.data == null || op.data.projectid == null) return false;
+
+        switch (op.type) {
+            case "create":
+                return applyCreate(op);
+            case "edit":
+                return applyEdit(op);
+            case "complete":
+            case "uncomplete":
+                return applyComplete(op, "complete".equals(op.type));
+            case "delete":
+                return applyDelete(op);
+            case "move":
+                return applyMove(op);
+            default:
+                return false;
+        }
+    }
+
+    private boolean applyCreate(PushPoll.Operation op) {
+        if (index.contains(op.data.projectid)) return true; // we already have it (probably our own proxy)
+
+        WFList parent = null;
+        if (!isRootId(op.data.parentid)) {
+            parent = index.get(op.data.parentid);
+            if (parent == null) return false;
+        }
+
+        WFList created = new WFList();
+        created.id = op.data.projectid;
+        created.lm = op.client_timestamp;
+        attach(created, parent, op.data.priority);
+        index.put(created, parent);
+        if (changes != null) changes.added(created, parent);
+        return true;
+    }
+
+    private boolean applyEdit(PushPoll.Operation op) {
+        WFList toEdit = index.get(op.data.projectid);
+        if (toEdit == null) return false;
+
+        String oldName = toEdit.nm, oldNote = toEdit.no;
+        if (op.data.name != null) toEdit.nm = op.data.name;
+        if (op.data.description != null) {
+            toEdit.no = op.data.description.isEmpty() ? null : op.data.description; // a workflowy backend behavior
+        }
+        toEdit.lm = op.client_timestamp;
+        index.invalidateSubtreeHashes(toEdit);
+        if (changes != null && (!Objects.equals(oldName, toEdit.nm) || !Objects.equals(oldNote, toEdit.no))) {
+            changes.edited(toEdit, index.getParent(toEdit.id)); // (not if it's just our own edit again)
+        }
+        return true;
+    }
+
+    private boolean applyComplete(PushPoll.Operation op, boolean isComplete) {
+        WFList toComplete = index.get(op.data.projectid);
+        if (toComplete == null) return false;
+
+        Long oldCompleted = toComplete.cp;
+        toComplete.cp = isComplete ? op.client_timestamp : null;
+        toComplete.lm = op.client_timestamp;
+        index.invalidateSubtreeHashes(toComplete);
+        if (changes != null && !Objects.equals(oldCompleted, toComplete.cp)) {
+            changes.edited(toComplete, index.getParent(toComplete.id));
+        }
+        return true;
+    }
+
+    private boolean applyDelete(PushPoll.Operation op) {
+        WFList toDelete = index.get(op.data.projectid);
+        if (toDelete == null) return true; // already gone
+
+        if (changes != null) changes.removed(toDelete, index.getParent(toDelete.id));
+        detach(toDelete);
+        index.remove(toDelete);
+        return true;
+    }
+
+    private boolean applyMove(PushPoll.Operation op) {
+        WFList toMove = index.get(op.data.projectid);
+        if (toMove == null) return false;
+
+        WFList newParent = null;
+        if (!isRootId(op.data.parentid)) {
+            newParent = index.get(op.data.parentid);
+            if (newParent == null) return false;
+            for (WFList ancestor = newParent; ancestor != null; ancestor = index.getParent(ancestor.id)) {
+                if (ancestor == toMove) return false; // can't move a list into itself
+            }
+        }
+
+        WFList oldParent = index.getParent(toMove.id);
+        int oldPosition = positionOf(toMove, oldParent);
+        detach(toMove);
+        attach(toMove, newParent, op.data.priority);
+        if (changes != null && (oldParent != newParent || oldPosition != positionOf(toMove, newParent))) {
+            changes.moved(toMove, oldParent, newParent);
+        }
+        index.put(toMove, newParent); // its descendants' parents haven't changed
+        toMove.lm = op.client_timestamp;
+        index.invalidateSubtreeHashes(toMove);
+        return true;
+    }
+
+    /**
+     * Inserts the list into the children of the given parent (or the root lists) at the given priority.
+     */
+    private void attach(WFList list, WFList parent, Integer priority) {
+        List<WFList> siblings = rootLists;
+        if (parent != null) {
+            parent.ch = Utils.copyOnWrite(parent.ch);
+            siblings = parent.ch;
+        }
+        siblings.add(clampIndex(priority, siblings.size()), list);
+        index.invalidateSubtreeHashes(parent);
+    }
+
+    /**
+     * Removes the list from its parent's children (or the root lists), leaving the index alone.
+     */
+    private void detach(WFList list) {
+        WFList parent = index.getParent(list.id);
+        index.invalidateSubtreeHashes(parent);
+        if (parent != null && parent.ch != null) parent.ch = Utils.copyOnWrite(parent.ch);
+        List<WFList> siblings = parent == null ? rootLists : parent.ch;
+        removeByReference(siblings, list);
+        if (parent != null && parent.ch != null && parent.ch.isEmpty()) {
+            parent.ch = null; // matches what a fresh load gives us
+        }
+    }
+
+    private int positionOf(WFList list, WFList parent) {
+        List<WFList> siblings = parent == null ? rootLists : parent.ch;
+        for (int i = 0; i < siblings.size(); i++) {
+            if (siblings.get(i) == list) return i;
+        }
+        return -1;
+    }
+
+    private static void removeByReference(List<WFList> lists, WFList toRemove) {
+        if (lists == null) return;
+        for (int i = 0; i < lists.size(); i++) {
+            if (lists.get(i) == toRemove) {
+                lists.remove(i);
+                return;
+            }
+        }
+    }
+
+    private static boolean isRootId(String parentId) {
+        return parentId == null || ROOT_PARENT_ID.equals(parentId);
+    }
+
+    private static int clampIndex(Integer priority, int size) {
+        if (priority == null || priority > size) return size;
+        if (priority < 0) return 0;
+        return priority;
+    }
+}
@@ -0,0 +1,131 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shrinks a list of pending operations down to an equivalent (but shorter) list before it's pushed:
+ * <ul>
+ *     <li>edits to the same list are folded together (so a create is followed by at most one edit,
+ *     which carries its text since creates themselves can't)</li>
+ *     <li>a complete followed by an uncomplete (or vice versa) of the same list cancel out</li>
+ *     <li>every operation on a list that's later deleted is dropped, as is the delete itself (and
+ *     everything created inside the list) if the list was created in the same batch</li>
+ * </ul>
+ * Operations on different lists are independent of each other so only the relative order of
+ * operations on the same list is ever preserved.  The supplied operations are never modified.
+ */
+class OperationCoalescer {
+
+    private static final String CREATE = "create";
+    private static final String EDIT = "edit";
+    private static final String COMPLETE = "complete";
+    private static final String UNCOMPLETE = "uncomplete";
+    private static final String DELETE = "delete";
+
+    /**
+     * Coalesce the given operations.
+     * @param ops the operations to coalesce, in the order they'd be pushed
+     * @return an equivalent (and hopefully shorter) list of operations
+     */
+    static List<PushPoll.Operation> coalesce(List<PushPoll.Operation> ops) {
+        Set<String> deleted = Sets.newHashSet();
+        for (PushPoll.Operation op : ops) {
+            if (DELETE.equals(op.type) && getListId(op) != null) deleted.add(getListId(op));
+        }
+        Set<String> vanished = findVanishedLists(ops, deleted);
+
+        // null entries are ops that were dropped or cancelled (we compact them out at the end)
+        List<PushPoll.Operation> result = Lists.newArrayListWithCapacity(ops.size());
+        // the index in the result of the latest edit / completion of each list (edits and
+        // completions touch different fields so they can be folded past each other)
+        Map<String, Integer> lastEditIdx = Maps.newHashMap();
+        Map<String, Integer> lastCompletionIdx = Maps.newHashMap();
+        Set<String> deletesKept = Sets.newHashSet();
+
+        for (PushPoll.Operation op : ops) {
+            String listId = getListId(op);
+            if (listId == null) { // not something we understand, leave it be
+                result.add(op);
+                continue;
+            }
+            if (vanished.contains(listId)) continue; // it never needs to exist on the server
+            if (deleted.contains(listId)) { // it'll be deleted anyway, so only the (first) delete matters
+                if (DELETE.equals(op.type) && deletesKept.add(listId)) {
+                    result.add(op);
+                }
+                continue;
+            }
+
+            if (EDIT.equals(op.type)) {
+                Integer prevIdx = lastEditIdx.get(listId);
+                if (prevIdx != null) {
+                    result.set(prevIdx, mergeEdits(result.get(prevIdx), op));
+                } else {
+                    lastEditIdx.put(listId, result.size());
+                    result.add(op);
+                }
+            } else if (COMPLETE.equals(op.type) || UNCOMPLETE.equals(op.type)) {
+                Integer prevIdx = lastCompletionIdx.remove(listId);
+                if (prevIdx != null) {
+                    boolean cancelsOut = !result.get(prevIdx).type.equals(op.type);
+                    result.set(prevIdx, null);
+                    if (cancelsOut) continue;
+                    // otherwise the later of two identical completions wins
+                }
+                lastCompletionIdx.put(listId, result.size());
+                result.add(op);
+            } else { // creates, moves, etc. need everything before them to stay before them
+                lastEditIdx.remove(listId);
+                lastCompletionIdx.remove(listId);
+                result.add(op);
+            }
+        }
+
+        List<PushPoll.Operation> compacted = Lists.newArrayListWithCapacity(result.size());
+        for (PushPoll.Operation op : result) {
+            if (op != null) compacted.add(op);
+        }
+        return compacted;
+    }
+
+    /**
+     * Finds the lists that are created in this batch and then deleted (or that are created inside
+     * a list that's deleted) so that none of their operations need to be sent at all.
+     */
+    private static Set<String> findVanishedLists(List<PushPoll.Operation> ops, Set<String> deleted) {
+        Set<String> vanished = Sets.newHashSet();
+        Set<String> vanishedOrDeleted = Sets.newHashSet(deleted);
+        for (PushPoll.Operation op : ops) { // creates always come before anything created inside them
+            if (!CREATE.equals(op.type) || getListId(op) == null) continue;
+            String listId = getListId(op);
+            if (deleted.contains(listId) || vanishedOrDeleted.contains(op.data.parentid)) {
+                vanished.add(listId);
+                vanishedOrDeleted.add(listId);
+            }
+        }
+        return vanished;
+    }
+
+    private static PushPoll.Operation mergeEdits(PushPoll.Operation earlier, PushPoll.Operation later) {
+        PushPoll.OperationData data = new PushPoll.OperationData()
+                .setProjectid(earlier.data.projectid)
+                .setName(later.data.name != null ? later.data.name : earlier.data.name)
+                .setDescription(later.data.description != null ? later.data.description : earlier.data.description);
+
+        return new PushPoll.Operation()
+                .setType(EDIT)
+                .setData(data)
+                .setClient_timestamp(later.client_timestamp)
+                .setUndo_data(earlier.undo_data); // undoing the merged edit goes back to before the first one
+    }
+
+    private static String getListId(PushPoll.Operation op) {
+        return op == null || op.type == null || op.data == null ? null : op.data.projectid;
+    }
+}
@@ -0,0 +1,279 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, on-disk journal of the operations a {@link WFClient} has queued but hasn't had
+ * confirmed by the server yet, so they survive the process dying without having to re-save the
+ * whole session (tree and all) after every change.
+ *
+ * Each record is a 4 byte length, a 4 byte CRC32 of the payload and then the payload itself (UTF-8
+ * JSON).  A record either appends a batch of operations (with a sequence number) or confirms every
+ * batch up to a sequence number.  Appends only hit the disk when {@link #sync()} is called, so
+ * several appends can share one fsync.  Reading stops at the first torn or corrupt record, which
+ * is dropped along with anything after it.  Once everything appended has been confirmed the file
+ * is truncated, and if it grows too big with some batches still pending it's rewritten with just
+ * those.
+ */
+public class OperationJournal {
+
+    private static final Logger log = Logger.getLogger(OperationJournal.class.getName());
+
+    private static final int HEADER_BYTES = 8; // length + crc
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024; // anything bigger is garbage
+    static final long COMPACT_THRESHOLD_BYTES = 256 * 1024;
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private boolean dirty; // whether we've written anything since the last sync
+    private final boolean created; // whether the file didn't exist until we opened it
+
+    private long lastSeq; // sequence number of the last batch appended
+    private final List<Record> pending = Lists.newArrayList(); // appended but not confirmed, in order
+
+    /**
+     * Opens (or creates) the journal in the given file, reading whatever's already there.
+     * @param file the journal file
+     * @throws IOException if it can't be opened
+     */
+    public OperationJournal(File file) throws IOException {
+        this.file = Preconditions.checkNotNull(file);
+        created = !file.exists();
+        open();
+        read();
+    }
+
+    /**
+     * Returns every batch that's been appended but not confirmed, in the order they were appended.
+     */
+    public synchronized List<List<PushPoll.Operation>> getPending() {
+        List<List<PushPoll.Operation>> result = Lists.newArrayListWithCapacity(pending.size());
+        for (Record r : pending) {
+            result.add(r.ops);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the journal's file was created when it was opened (rather than already being
+     * there, possibly empty because everything in it had been confirmed).
+     */
+    public boolean wasCreated() {
+        return created;
+    }
+
+    /**
+     * Appends a batch of operations (which won't be durable until the next {@link #sync()}).
+     * @param ops the operations to append
+     * @return the batch's sequence number, for {@link #confirm}
+     * @throws IOException if it couldn't be written
+     */
+    public synchronized long append(List<PushPoll.Operation> ops) throws IOException {
+        Record r = new Record();
+        r.seq = lastSeq + 1;
+        r.ops = ops;
+        write(r);
+        lastSeq = r.seq;
+        pending.add(r);
+        return r.seq;
+    }
+
+    /**
+     * Returns the sequence number of the last batch appended (0 if there haven't been any).
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Records that every batch up to and including the given sequence number has been confirmed by
+     * the server (so won't be returned by {@link #getPending()} any more).
+     * @param seq the last confirmed sequence number
+     * @throws IOException if it couldn't be written
+     */
+    public synchronized void confirm(long seq) throws IOException {
+        boolean removed = false;
+        while (!pending.isEmpty() && pending.get(0).seq <= seq) {
+            pending.remove(0);
+            removed = true;
+        }
+        if (!removed) return;
+
+        if (pending.isEmpty()) {
+            truncate();
+        } else if (channel.size() > COMPACT_THRESHOLD_BYTES) {
+            compact();
+        } else {
+            Record r = new Record();
+            r.confirmed = seq;
+            write(r);
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk, if there's anything new.
+     * @throws IOException if it couldn't be
+     */
+    public synchronized void sync() throws IOException {
+        if (!dirty) return;
+        channel.force(false);
+        dirty = false;
+    }
+
+    /**
+     * Forgets everything in the journal (like when the user logs out).
+     * @throws IOException if the file couldn't be truncated
+     */
+    public synchronized void clear() throws IOException {
+        pending.clear();
+        truncate();
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        raf.close();
+    }
+
+    /**
+     * Returns the size of the journal file in bytes.
+     */
+    synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    private void read() throws IOException {
+        long validUpTo = 0;
+        long confirmed = 0;
+        channel.position(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (true) {
+            header.clear();
+            if (!readFully(header)) break;
+            int length = header.getInt(0);
+            int crc = header.getInt(4);
+            if (length <= 0 || length > MAX_RECORD_BYTES) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            if (!readFully(payload) || crc != crc(payload.array())) break;
+
+            Record r;
+            try {
+                r = gson.fromJson(new String(payload.array(), Charsets.UTF_8), Record.class);
+            } catch (JsonParseException e) {
+                break;
+            }
+            if (r == null) break;
+            if (r.ops != null) {
+                pending.add(r);
+                lastSeq = Math.max(lastSeq, r.seq);
+            } else {
+                confirmed = Math.max(confirmed, r.confirmed);
+            }
+            validUpTo = channel.position();
+        }
+
+        if (validUpTo < channel.size()) { // a write that didn't finish (or garbage), drop it
+            log.warning("Dropping " + (channel.size() - validUpTo) + " bytes of torn or corrupt journal");
+            channel.truncate(validUpTo);
+        }
+        channel.position(validUpTo);
+
+        while (!pending.isEmpty() && pending.get(0).seq <= confirmed) {
+            pending.remove(0);
+        }
+    }
+
+    private boolean readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) return false;
+        }
+        return true;
+    }
+
+    private void write(Record r) throws IOException {
+        channel.write(encode(r));
+        dirty = true;
+    }
+
+    private ByteBuffer encode(Record r) {
+        byte[] payload = gson.toJson(r).getBytes(Charsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buf.putInt(payload.length);
+        buf.putInt(crc(payload));
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    private void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+        dirty = false;
+    }
+
+    /**
+     * Rewrites the journal with just the pending batches (to a new file that replaces the old one,
+     * so we never have a moment where they're not on disk).
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel tmpChannel = tmpRaf.getChannel();
+            tmpChannel.truncate(0);
+            for (Record r : pending) {
+                tmpChannel.write(encode(r));
+            }
+            tmpChannel.force(false);
+        } finally {
+            tmpRaf.close();
+        }
+
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            open();
+            channel.position(channel.size());
+            throw new IOException("Couldn't replace journal " + file + " with " + tmp);
+        }
+        open();
+        channel.position(channel.size());
+        dirty = false;
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * What's actually serialized in each record: either an appended batch (seq and ops) or a
+     * confirmation (confirmed).
+     */
+    private static class Record {
+        long seq;
+        List<PushPoll.Operation> ops;
+        long confirmed;
+    }
+}
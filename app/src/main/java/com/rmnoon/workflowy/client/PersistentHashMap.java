@@ -0,0 +1,278 @@
+package com.rmnoon.workflowy.client;
+
+import java.util.Arrays;
+
+/**
+ * An immutable hash map (a hash array mapped trie) whose updates return a new map that shares
+ * everything but the path to the changed entry with the old one, so keeping old versions around
+ * is cheap and they can be read from any thread without locking.
+ *
+ * Updates take an "edit" token: nodes created under a token are modified in place by later updates
+ * with the same token rather than copied, which makes building a map up one entry at a time about
+ * as cheap as a {@link java.util.HashMap}.  Whoever holds a token must switch to a new one before
+ * handing out a version built with it (see {@link ListIndex#snapshot()}), and a null token always
+ * copies.  Keys and values can't be null.
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+    private static final Object NOT_FOUND = new Object();
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        if (root == null) return null;
+        Object found = root.find(0, hash(key), key);
+        return found == NOT_FOUND ? null : (V) found;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a map with the given key mapped to the given value.
+     * @param edit the edit token (null to leave every existing node alone)
+     */
+    PersistentHashMap<K, V> plus(K key, V value, Object edit) {
+        if (key == null || value == null) throw new NullPointerException();
+        boolean[] added = new boolean[1];
+        Node newRoot = (root == null ? new BitmapNode(edit, 0, new Object[0]) : root).put(edit, 0, hash(key), key, value, added);
+        if (newRoot == root && !added[0]) return this; // (an edit in place may still have replaced the value)
+        return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without the given key.
+     * @param edit the edit token (null to leave every existing node alone)
+     */
+    PersistentHashMap<K, V> minus(Object key, Object edit) {
+        if (root == null) return this;
+        boolean[] removed = new boolean[1];
+        Node newRoot = root.remove(edit, 0, hash(key), key, removed);
+        if (!removed[0]) return this;
+        return newRoot == null ? PersistentHashMap.<K, V>empty() : new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 0x1f);
+    }
+
+    private abstract static class Node {
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        boolean isEditable(Object edit) {
+            return edit != null && edit == this.edit;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added);
+
+        abstract Node remove(Object edit, int shift, int hash, Object key, boolean[] removed);
+    }
+
+    /**
+     * A node with up to 32 slots (one for each value of the 5 bits of the hash at this level), only
+     * storing the ones that are used.  Each slot is a key and its value, or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return NOT_FOUND;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) return ((Node) v).find(shift + 5, hash, key);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bitpos(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * i];
+                Object v = array[2 * i + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(edit, shift + 5, hash, key, value, added);
+                    return child == v ? this : set(edit, 2 * i + 1, child);
+                }
+                if (key.equals(k)) {
+                    return value == v ? this : set(edit, 2 * i + 1, value);
+                }
+                // two keys in one slot, so push them both down a level
+                added[0] = true;
+                Node child = createNode(edit, shift + 5, k, v, hash, key, value);
+                BitmapNode result = (BitmapNode) set(edit, 2 * i, null);
+                result.array[2 * i + 1] = child; // result is always editable by us (we either own it or just made it)
+                return result;
+            }
+
+            added[0] = true;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * i);
+            newArray[2 * i] = key;
+            newArray[2 * i + 1] = value;
+            System.arraycopy(array, 2 * i, newArray, 2 * (i + 1), 2 * (n - i));
+            if (isEditable(edit)) {
+                array = newArray;
+                bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, newArray);
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(edit, shift + 5, hash, key, removed);
+                if (child == v) return this;
+                if (child != null) return set(edit, 2 * i + 1, child);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            removed[0] = true;
+            if (bitmap == bit) return null;
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * i);
+            System.arraycopy(array, 2 * (i + 1), newArray, 2 * i, 2 * (n - i - 1));
+            if (isEditable(edit)) {
+                array = newArray;
+                bitmap ^= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, newArray);
+        }
+
+        private Node set(Object edit, int idx, Object o) {
+            if (isEditable(edit)) {
+                array[idx] = o;
+                return this;
+            }
+            Object[] newArray = array.clone();
+            newArray[idx] = o;
+            return new BitmapNode(edit, bitmap, newArray);
+        }
+
+        private static Node createNode(Object edit, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = hash(k1);
+            if (h1 == h2) return new CollisionNode(edit, h1, new Object[] {k1, v1, k2, v2});
+            boolean[] ignored = new boolean[1];
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, shift, h1, k1, v1, ignored)
+                    .put(edit, shift, h2, k2, v2, ignored);
+        }
+    }
+
+    /**
+     * A node for keys whose hashes are entirely the same, as key / value pairs.
+     */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) { // it's not a collision with us, so we need a level above us
+                return new BitmapNode(edit, bitpos(this.hash, shift), new Object[] {null, this})
+                        .put(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            Object[] newArray;
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                newArray = isEditable(edit) ? array : array.clone();
+                newArray[i + 1] = value;
+            } else {
+                added[0] = true;
+                newArray = Arrays.copyOf(array, array.length + 2);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = value;
+            }
+            if (isEditable(edit)) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int i = indexOf(key);
+            if (i < 0) return this;
+            removed[0] = true;
+            if (array.length == 2) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            if (isEditable(edit)) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+    }
+}
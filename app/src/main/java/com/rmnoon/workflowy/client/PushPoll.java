@@ -279,6 +279,14 @@ public class PushPoll {
         public List<ResponseResult> results;
     }
 
+    /**
+     * A transaction run on the server (by us or by another client), as found in the JSON strings of
+     * {@link ResponseResult#concurrent_remote_operation_transactions}.
+     */
+    public static class RemoteTransaction {
+        public List<Operation> ops;
+    }
+
     public static class ResponseResult {
         public Integer monthly_item_quota;
         public Integer items_created_in_current_month;
@@ -0,0 +1,16 @@
+package com.rmnoon.workflowy.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown (and used to fail the futures of the changes involved) when the server refuses a push of
+ * our changes outright, rather than just not being reachable.  Unlike other IOExceptions from a
+ * push, the operations that were in it aren't kept to be retried (they'd only be refused again):
+ * they're dropped, and the next {@link WFClient#refresh()} or {@link WFClient#sync()} does a full
+ * load to undo them in our tree.  Changes made after the push started are left queued.
+ */
+public class PushRejectedException extends IOException {
+    public PushRejectedException(String message) {
+        super(message);
+    }
+}
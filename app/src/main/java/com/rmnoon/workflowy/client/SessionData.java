@@ -13,6 +13,6 @@ public class SessionData {
     public String initialTransactionId;
     public String curTransactionId;
     public long dateJoinedTimestampInSeconds;
-    public List<WFList> rootLists;
+    public volatile List<WFList> rootLists; // read without the client's lock, see WFClient#getRootLists
     public List<List<PushPoll.Operation>> unconfirmedOps;
 }
@@ -0,0 +1,60 @@
+package com.rmnoon.workflowy.client;
+
+/**
+ * A change (or a batch of changes from the same source) to a {@link WFClient}'s tree of lists,
+ * stamped with the version of the tree it brought it to.
+ */
+public class TreeChangeEvent {
+
+    public enum Type {
+        /** Made through one of the client's mutators (so reflected in the tree before it's pushed). */
+        LOCAL,
+        /** Made by applying operations: other clients' (from a push / poll) or replayed ones of ours. */
+        REMOTE,
+        /** Found by a full load, see {@link WFClient#getLastLoadDiff()}. */
+        LOAD,
+        /** The whole tree was replaced (or cleared) without us knowing what changed, so anything might have. */
+        RESET
+    }
+
+    private final long version;
+    private final Type type;
+    private final TreeDiff changes;
+
+    TreeChangeEvent(long version, Type type, TreeDiff changes) {
+        this.version = version;
+        this.type = type;
+        this.changes = changes;
+    }
+
+    /**
+     * Returns the version of the tree after this change (versions go up by one with every event).
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the lists that changed (null for a {@link Type#RESET}).
+     */
+    public TreeDiff getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns whether the given list or its children might have changed.
+     * @param listId the list's id ({@link TreeDiff#ROOT_LISTS_ID} for the root lists)
+     */
+    public boolean affects(String listId) {
+        return changes == null || changes.affects(listId);
+    }
+
+    @Override
+    public String toString() {
+        return "TreeChangeEvent{version=" + version + ", type=" + type + ", changes=" + changes + "}";
+    }
+}
@@ -0,0 +1,17 @@
+package com.rmnoon.workflowy.client;
+
+import java.util.List;
+
+/**
+ * Told about changes to a {@link WFClient}'s tree of lists, see
+ * {@link WFClient#addChangeListener}.
+ */
+public interface TreeChangeListener {
+
+    /**
+     * Called with the changes made since the last call, in the order they were made (so their
+     * versions are increasing).
+     * @param events the changes (never empty)
+     */
+    void onTreeChanged(List<TreeChangeEvent> events);
+}
@@ -0,0 +1,87 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+import java.util.Deque;
+import java.util.Set;
+
+/**
+ * Collects the changes made to a tree as they're made (as opposed to {@link TreeDiff#compute},
+ * which works them out afterwards), to be turned into a {@link TreeDiff}.
+ */
+class TreeChanges {
+
+    private final Set<String> added = Sets.newLinkedHashSet();
+    private final Set<String> removed = Sets.newLinkedHashSet();
+    private final Set<String> edited = Sets.newLinkedHashSet();
+    private final Set<String> moved = Sets.newLinkedHashSet();
+    private final Set<String> changedParents = Sets.newLinkedHashSet();
+
+    /**
+     * Records that the list (and any descendants it has) was added under the given parent.
+     */
+    void added(WFList list, WFList parent) {
+        changedParents.add(idOf(parent));
+        for (String id : subtreeIds(list)) {
+            added.add(id);
+        }
+    }
+
+    /**
+     * Records that the list (and all its descendants) was removed from the given parent.
+     */
+    void removed(WFList list, WFList parent) {
+        changedParents.add(idOf(parent));
+        for (String id : subtreeIds(list)) {
+            removed.add(id);
+        }
+    }
+
+    void edited(WFList list, WFList parent) {
+        changedParents.add(idOf(parent));
+        edited.add(list.id);
+    }
+
+    void moved(WFList list, WFList oldParent, WFList newParent) {
+        changedParents.add(idOf(oldParent));
+        changedParents.add(idOf(newParent));
+        moved.add(list.id);
+    }
+
+    boolean isEmpty() {
+        return changedParents.isEmpty();
+    }
+
+    /**
+     * Returns the net changes: a list that was added and removed again is neither, and one that
+     * was added isn't also edited or moved.
+     */
+    TreeDiff toDiff() {
+        Set<String> netAdded = Sets.newLinkedHashSet(Sets.difference(added, removed));
+        Set<String> netRemoved = Sets.newLinkedHashSet(Sets.difference(removed, added));
+        Set<String> netEdited = Sets.newLinkedHashSet(edited);
+        netEdited.removeAll(added);
+        netEdited.removeAll(removed);
+        Set<String> netMoved = Sets.newLinkedHashSet(moved);
+        netMoved.removeAll(added);
+        netMoved.removeAll(removed);
+        return new TreeDiff(netAdded, netRemoved, netEdited, netMoved, changedParents);
+    }
+
+    private static String idOf(WFList parent) {
+        return parent == null ? TreeDiff.ROOT_LISTS_ID : parent.id;
+    }
+
+    private static Set<String> subtreeIds(WFList list) {
+        Set<String> ids = Sets.newLinkedHashSet();
+        Deque<WFList> toVisit = Queues.newArrayDeque();
+        toVisit.add(list);
+        while (!toVisit.isEmpty()) {
+            WFList cur = toVisit.remove();
+            ids.add(cur.id);
+            if (cur.ch != null) toVisit.addAll(cur.ch);
+        }
+        return ids;
+    }
+}
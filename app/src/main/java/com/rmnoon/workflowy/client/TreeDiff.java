@@ -0,0 +1,269 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What changed between two versions of a tree of lists, by list id: which lists were added,
+ * removed, edited (their name, note or completion changed) or moved (to another parent, or to
+ * another place among their siblings), and which lists' children changed as a result.
+ *
+ * It's computed by walking both trees together from the root and comparing subtree hashes (see
+ * {@link WFList#getSubtreeHash()}), so only the parts of the trees that actually changed get
+ * looked at.  Lists are matched up by id (with an index of each tree), so a list that shows up
+ * under a different parent is a move rather than a removal and an addition.  Every descendant of
+ * an added or removed list is reported as added or removed too (unless it was moved out of it).
+ */
+public class TreeDiff {
+
+    /**
+     * The id {@link #getChangedParents()} uses for the root lists' "parent".
+     */
+    public static final String ROOT_LISTS_ID = OperationApplier.ROOT_PARENT_ID;
+
+    private final Set<String> added;
+    private final Set<String> removed;
+    private final Set<String> edited;
+    private final Set<String> moved;
+    private final Set<String> changedParents;
+
+    TreeDiff(Set<String> added, Set<String> removed, Set<String> edited, Set<String> moved, Set<String> changedParents) {
+        this.added = ImmutableSet.copyOf(added);
+        this.removed = ImmutableSet.copyOf(removed);
+        this.edited = ImmutableSet.copyOf(edited);
+        this.moved = ImmutableSet.copyOf(moved);
+        this.changedParents = ImmutableSet.copyOf(changedParents);
+    }
+
+    /**
+     * Compares two trees.  Neither is changed, though their subtree hashes are computed if they
+     * aren't already cached.
+     * @param oldRootLists the tree before (null is empty)
+     * @param newRootLists the tree after (null is empty)
+     * @return what changed
+     */
+    public static TreeDiff compute(List<WFList> oldRootLists, List<WFList> newRootLists) {
+        ListIndex oldIndex = new ListIndex();
+        oldIndex.rebuild(oldRootLists);
+        ListIndex newIndex = new ListIndex();
+        newIndex.rebuild(newRootLists);
+        return compute(oldRootLists, oldIndex, newRootLists, newIndex);
+    }
+
+    /**
+     * Like {@link #compute(List, List)} but with indexes of both trees that are already built.
+     */
+    static TreeDiff compute(List<WFList> oldRootLists, ListIndex oldIndex, List<WFList> newRootLists, ListIndex newIndex) {
+        Builder b = new Builder(oldIndex, newIndex);
+        b.compareChildren(TreeDiff.ROOT_LISTS_ID, oldRootLists, newRootLists);
+        b.compareAll();
+        return new TreeDiff(b.added, b.removed, b.edited, b.moved, b.changedParents);
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    public Set<String> getEdited() {
+        return edited;
+    }
+
+    public Set<String> getMoved() {
+        return moved;
+    }
+
+    /**
+     * Returns the ids of the lists whose children changed: had a list added, removed, edited or
+     * moved in or out of them or around within them ({@link #ROOT_LISTS_ID} for the root lists).
+     */
+    public Set<String> getChangedParents() {
+        return changedParents;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && edited.isEmpty() && moved.isEmpty();
+    }
+
+    /**
+     * Returns whether anything about the given list or its children changed (so that anything
+     * showing it should be redrawn).
+     * @param listId the list's id ({@link #ROOT_LISTS_ID} for the root lists)
+     */
+    public boolean affects(String listId) {
+        return changedParents.contains(listId) || edited.contains(listId) || removed.contains(listId);
+    }
+
+    @Override
+    public String toString() {
+        return "TreeDiff{added=" + added + ", removed=" + removed + ", edited=" + edited + ", moved=" + moved + "}";
+    }
+
+    private static class Builder {
+        final ListIndex oldIndex;
+        final ListIndex newIndex;
+        final Set<String> added = Sets.newLinkedHashSet();
+        final Set<String> removed = Sets.newLinkedHashSet();
+        final Set<String> edited = Sets.newLinkedHashSet();
+        final Set<String> moved = Sets.newLinkedHashSet();
+        final Set<String> changedParents = Sets.newLinkedHashSet();
+        final Deque<WFList[]> toCompare = Queues.newArrayDeque(); // pairs of versions of the same list
+
+        Builder(ListIndex oldIndex, ListIndex newIndex) {
+            this.oldIndex = oldIndex;
+            this.newIndex = newIndex;
+        }
+
+        void compareAll() {
+            while (!toCompare.isEmpty()) {
+                WFList[] pair = toCompare.remove();
+                compare(pair[0], pair[1]);
+            }
+        }
+
+        /**
+         * Compares two versions of the same list, queueing up any of its children that need it.
+         */
+        private void compare(WFList oldList, WFList newList) {
+            if (oldList.getSubtreeHash() == newList.getSubtreeHash()) return;
+            if (isEdited(oldList, newList)) edited.add(newList.id);
+            compareChildren(newList.id, oldList.ch, newList.ch);
+        }
+
+        /**
+         * Compares the children of two versions of the same list (or of the root lists).
+         */
+        void compareChildren(String parentId, List<WFList> oldChildren, List<WFList> newChildren) {
+            if (oldChildren == null) oldChildren = Collections.emptyList();
+            if (newChildren == null) newChildren = Collections.emptyList();
+
+            Map<String, Integer> oldPositions = Maps.newHashMapWithExpectedSize(oldChildren.size());
+            for (int i = 0; i < oldChildren.size(); i++) {
+                oldPositions.put(oldChildren.get(i).id, i);
+            }
+
+            boolean changed = false;
+            int[] keptOldPositions = new int[newChildren.size()]; // of the children that were here before
+            List<WFList> kept = Lists.newArrayListWithCapacity(newChildren.size());
+            Set<String> newIds = Sets.newHashSetWithExpectedSize(newChildren.size());
+            for (WFList newChild : newChildren) {
+                newIds.add(newChild.id);
+                Integer oldPosition = oldPositions.get(newChild.id);
+                if (oldPosition == null) {
+                    arrived(newChild);
+                    changed = true;
+                    continue;
+                }
+                WFList oldChild = oldChildren.get(oldPosition);
+                if (oldChild.getSubtreeHash() != newChild.getSubtreeHash()) {
+                    toCompare.add(new WFList[] {oldChild, newChild});
+                    if (isEdited(oldChild, newChild)) changed = true; // (not if just its descendants changed)
+                }
+                keptOldPositions[kept.size()] = oldPosition;
+                kept.add(newChild);
+            }
+            for (WFList oldChild : oldChildren) {
+                if (!newIds.contains(oldChild.id)) {
+                    left(oldChild);
+                    changed = true;
+                }
+            }
+
+            // the children that kept their order are the longest run of them that's in the same
+            // order as before, the rest were moved around
+            boolean[] inOrder = longestIncreasing(Arrays.copyOf(keptOldPositions, kept.size()));
+            for (int i = 0; i < kept.size(); i++) {
+                if (!inOrder[i]) {
+                    moved.add(kept.get(i).id);
+                    changed = true;
+                }
+            }
+            if (changed) changedParents.add(parentId);
+        }
+
+        private static boolean isEdited(WFList oldList, WFList newList) {
+            return !Objects.equals(oldList.nm, newList.nm) || !Objects.equals(oldList.no, newList.no) || !Objects.equals(oldList.cp, newList.cp);
+        }
+
+        /**
+         * Handles a list that's under a parent it wasn't under before: it was either moved there
+         * or added (along with all its descendants, unless they were moved there).
+         */
+        private void arrived(WFList newList) {
+            Deque<WFList> toVisit = Queues.newArrayDeque();
+            toVisit.add(newList);
+            while (!toVisit.isEmpty()) {
+                WFList cur = toVisit.remove();
+                WFList oldList = oldIndex.get(cur.id);
+                if (oldList != null) {
+                    moved.add(cur.id);
+                    toCompare.add(new WFList[] {oldList, cur});
+                } else {
+                    added.add(cur.id);
+                    if (cur.ch != null) toVisit.addAll(cur.ch);
+                }
+            }
+        }
+
+        /**
+         * Handles a list that's no longer under the parent it was under: it was either removed
+         * (along with all its descendants, unless they were moved out) or moved somewhere else
+         * (which we'll see from where it arrived).
+         */
+        private void left(WFList oldList) {
+            Deque<WFList> toVisit = Queues.newArrayDeque();
+            toVisit.add(oldList);
+            while (!toVisit.isEmpty()) {
+                WFList cur = toVisit.remove();
+                if (newIndex.contains(cur.id)) continue;
+                removed.add(cur.id);
+                if (cur.ch != null) toVisit.addAll(cur.ch);
+            }
+        }
+    }
+
+    /**
+     * Finds a longest strictly increasing subsequence of the given values.
+     * @return which of the values are in it
+     */
+    static boolean[] longestIncreasing(int[] values) {
+        int n = values.length;
+        int[] tails = new int[n]; // index of the smallest tail of an increasing run of each length
+        int[] prev = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int lo = 0, hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            prev[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length) length++;
+        }
+
+        boolean[] result = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = prev[i]) {
+            result[i] = true;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,202 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compact, versioned binary format for a whole tree of lists, so it can be saved and loaded much
+ * faster than as JSON.
+ *
+ * Nodes are numbered breadth first, so the root lists are nodes 0 to rootCount - 1 and the
+ * children of any node are a contiguous run of nodes.  The layout (all big-endian) is:
+ * <pre>
+ *   int magic, int version, int nodeCount, int rootCount
+ *   int[nodeCount] offsets  -- where each node's record starts, from the start of the snapshot
+ *   int[nodeCount] idOrder  -- node numbers sorted by id, for looking nodes up by id
+ *   node records, each:
+ *     string id, string nm, string no, long lm,
+ *     byte hasCp, long cp (only if hasCp),
+ *     int firstChild, int childCount
+ * </pre>
+ * where a string is an int byte length (-1 for null) followed by that many bytes of UTF-8.
+ */
+public class TreeSnapshot {
+
+    static final int MAGIC = 0x57465453; // "WFTS"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    /**
+     * Writes the given lists (and all of their descendants) as a snapshot.
+     * @param rootLists the lists to write (null writes an empty tree)
+     * @param out where to write it (which is left open)
+     * @throws IOException if it couldn't be written
+     */
+    public static void write(List<WFList> rootLists, OutputStream out) throws IOException {
+        List<WFList> nodes = numberNodes(rootLists);
+        int rootCount = rootLists == null ? 0 : rootLists.size();
+
+        // write the records first so we know where they all start
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(nodes.size() * 64);
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int recordsStart = HEADER_BYTES + 8 * nodes.size();
+        int[] offsets = new int[nodes.size()];
+        int nextChild = rootCount;
+        for (int i = 0; i < nodes.size(); i++) {
+            WFList node = nodes.get(i);
+            offsets[i] = recordsStart + records.size();
+            writeString(records, node.id);
+            writeString(records, node.nm);
+            writeString(records, node.no);
+            records.writeLong(node.lm);
+            records.writeBoolean(node.cp != null);
+            if (node.cp != null) records.writeLong(node.cp);
+            int childCount = node.ch == null ? 0 : node.ch.size();
+            records.writeInt(nextChild);
+            records.writeInt(childCount);
+            nextChild += childCount;
+        }
+        records.flush();
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(nodes.size());
+        data.writeInt(rootCount);
+        for (int offset : offsets) {
+            data.writeInt(offset);
+        }
+        for (int nodeNum : sortById(nodes)) {
+            data.writeInt(nodeNum);
+        }
+        recordBytes.writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * Reads a whole snapshot back into a tree of lists.
+     * @param in the snapshot (read to the end, but left open)
+     * @return the root lists
+     * @throws IOException if it couldn't be read or isn't a snapshot we understand
+     */
+    public static List<WFList> read(InputStream in) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(ByteStreams.toByteArray(in));
+        try {
+            int nodeCount = readHeader(buf);
+            int rootCount = buf.getInt();
+            buf.position(HEADER_BYTES + 8 * nodeCount); // records are in node order, so skip the tables
+
+            WFList[] nodes = new WFList[nodeCount];
+            int[] firstChildren = new int[nodeCount];
+            int[] childCounts = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                WFList node = new WFList();
+                node.id = readString(buf);
+                node.nm = readString(buf);
+                node.no = readString(buf);
+                node.lm = buf.getLong();
+                node.cp = buf.get() != 0 ? buf.getLong() : null;
+                firstChildren[i] = buf.getInt();
+                childCounts[i] = buf.getInt();
+                nodes[i] = node;
+            }
+
+            for (int i = 0; i < nodeCount; i++) {
+                if (childCounts[i] == 0) continue; // no children is null (like a fresh load)
+                checkRange(firstChildren[i], childCounts[i], nodeCount);
+                nodes[i].ch = Lists.newArrayList(Arrays.asList(nodes).subList(firstChildren[i], firstChildren[i] + childCounts[i]));
+            }
+            checkRange(0, rootCount, nodeCount);
+            return Lists.newArrayList(Arrays.asList(nodes).subList(0, rootCount));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot", e);
+        }
+    }
+
+    /**
+     * Checks the header at the start of the buffer (leaving it positioned just after the node count).
+     * @return the number of nodes in the snapshot
+     */
+    static int readHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        int nodeCount = buf.getInt();
+        if (nodeCount < 0) throw new IOException("Corrupt snapshot");
+        return nodeCount;
+    }
+
+    static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        if (length > buf.remaining()) throw new BufferUnderflowException();
+        if (buf.hasArray()) {
+            String result = new String(buf.array(), buf.arrayOffset() + buf.position(), length, Charsets.UTF_8);
+            buf.position(buf.position() + length);
+            return result;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void checkRange(int first, int count, int nodeCount) {
+        if (first < 0 || count < 0 || first + count > nodeCount) {
+            throw new IllegalArgumentException("Child range out of bounds");
+        }
+    }
+
+    /**
+     * Returns every list in the tree, breadth first (which is how they're numbered).
+     */
+    private static List<WFList> numberNodes(List<WFList> rootLists) {
+        if (rootLists == null) return Collections.emptyList();
+        List<WFList> nodes = Lists.newArrayList(rootLists);
+        for (int i = 0; i < nodes.size(); i++) {
+            List<WFList> children = nodes.get(i).ch;
+            if (children != null) nodes.addAll(children);
+        }
+        return nodes;
+    }
+
+    private static Integer[] sortById(final List<WFList> nodes) {
+        Integer[] order = new Integer[nodes.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return nodes.get(a).id.compareTo(nodes.get(b).id);
+            }
+        });
+        return order;
+    }
+}
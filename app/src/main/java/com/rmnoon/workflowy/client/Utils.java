@@ -12,6 +12,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by rmnoon on 5/11/16.
@@ -82,6 +83,16 @@ public class Utils {
         return -1;
     }
 
+    /**
+     * Returns the given lists as a list that can be changed while other threads are reading it (see
+     * {@link WFList#ch}): the same list if it already is one, otherwise a copy.
+     * @param lists the lists (null is empty)
+     */
+    static List<WFList> copyOnWrite(List<WFList> lists) {
+        if (lists instanceof CopyOnWriteArrayList) return lists;
+        return lists == null ? new CopyOnWriteArrayList<WFList>() : new CopyOnWriteArrayList<>(lists);
+    }
+
     /**
      * Return a new set of Workflowy lists that are exactly equal to the provided canonical set
      * but that reuse existing object references from the other provided set.
@@ -90,38 +101,43 @@ public class Utils {
      * @return
      */
     public static List<WFList> getReusedLists(List<WFList> reuseLists, List<WFList> canonicalLists) {
-        if (reuseLists == null) reuseLists = Collections.emptyList();
-
-        final Map<String, WFList> fromMap = Maps.newHashMap();
-        bfsLists(reuseLists, new Function<WFList, Boolean>() {
-            @Override
-            public Boolean apply(WFList input) {
-                fromMap.put(input.getId(), input);
-                return null;
-            }
-        });
+        ListIndex reuseIndex = new ListIndex();
+        reuseIndex.rebuild(reuseLists);
+        return getReusedLists(reuseIndex, canonicalLists, new ListIndex());
+    }
 
-        List<WFList> result = getReusedLists(fromMap, canonicalLists);
-        Preconditions.checkState(result.equals(canonicalLists));
+    /**
+     * Like {@link #getReusedLists(List, List)} but takes the lists to reuse from an existing index
+     * (rather than walking the old tree to build one) and fills the supplied index with every list
+     * in the result as it goes.
+     * @param reuseIndex the index of lists whose object references should be reused
+     * @param canonicalLists the canonical set of lists
+     * @param resultIndex an (empty) index to populate with the result
+     * @return
+     */
+    static List<WFList> getReusedLists(ListIndex reuseIndex, List<WFList> canonicalLists, ListIndex resultIndex) {
+        List<WFList> result = getReusedListsInto(reuseIndex, null, canonicalLists, resultIndex);
+        Preconditions.checkState(result.equals(canonicalLists)); // by subtree hash, which later comparisons reuse
         return result;
     }
 
-    private static List<WFList> getReusedLists(Map<String, WFList> reuseMap, List<WFList> canonicalList) {
+    private static List<WFList> getReusedListsInto(ListIndex reuseIndex, WFList parent, List<WFList> canonicalList, ListIndex resultIndex) {
         if (canonicalList == null) return null;
 
         List<WFList> result = Lists.newArrayListWithCapacity(canonicalList.size());
 
         for (WFList canonical : canonicalList) {
             WFList newCanonical;
-            if (reuseMap.containsKey(canonical.id)) {
-                WFList toReuse = reuseMap.get(canonical.id);
+            WFList toReuse = reuseIndex.get(canonical.id);
+            if (toReuse != null) {
                 toReuse.copyIntoFrom(canonical);
                 newCanonical = toReuse;
             } else {
                 newCanonical = canonical;
             }
             result.add(newCanonical);
-            newCanonical.ch = getReusedLists(reuseMap, newCanonical.ch);
+            resultIndex.put(newCanonical, parent);
+            newCanonical.ch = getReusedListsInto(reuseIndex, newCanonical, newCanonical.ch, resultIndex);
         }
 
         return result;
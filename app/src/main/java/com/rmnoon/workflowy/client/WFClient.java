@@ -1,19 +1,40 @@
 package com.rmnoon.workflowy.client;
 
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import okhttp3.FormBody;
@@ -35,20 +56,65 @@ public class WFClient {
     public static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_4) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/50.0.2661.94 Safari/537.36";
     public static final int TIMEOUT_MS = 2500;
     public static final String CLIENT_VERSION = "16";
+    public static final int MAX_SYNC_OPERATIONS = 1000; // if we're further behind than this, reload everything instead
+    public static final int DEFAULT_GROUP_COMMIT_MAX_OPS = 200;
 
     private Gson gson;
+    private Gson sessionOnlyGson; // for serializing a session without its lists
     private OkHttpClient client;
     private SessionData session;
+    private ListIndex index; // only touched holding this client's lock
+    // a snapshot of the index as of the last change to it, for reading without locking
+    private final AtomicReference<ListIndex> publishedIndex = new AtomicReference<>(new ListIndex());
+    private boolean needsFullLoad; // set when we couldn't apply the remote operations a push / poll told us about
+    private TreeDiff lastLoadDiff; // what the last full load changed
+
+    private final Object pushLock = new Object(); // held while pushing so pushes go out one at a time, in order
+    private long groupCommitWindowMs; // 0 means every mutation is pushed (and blocks) on its own
+    private int groupCommitMaxOps = DEFAULT_GROUP_COMMIT_MAX_OPS;
+    private ListeningScheduledExecutorService backgroundExecutor; // runs group commits and the async methods
+    private ScheduledFuture<?> scheduledFlush;
+    // completed when the unconfirmed operations queued alongside them have been pushed
+    private List<SettableFuture<Void>> pendingConfirmations = Lists.newArrayList();
+    private volatile OperationJournal journal; // where unconfirmed operations are made durable (if anywhere)
+    private SettableFuture<Void> inFlightRefresh; // the refresh that's running (if any) for others to join
+    private SettableFuture<Void> inFlightSync;
+    private final List<ChangeListenerRegistration> changeListeners = new CopyOnWriteArrayList<>();
+    private long treeVersion; // bumped with every change event
+    private TreeChanges pendingChanges; // recorded since the last event, all of pendingChangesType
+    private TreeChangeEvent.Type pendingChangesType;
+    private List<TreeChangeEvent> undispatchedEvents = Lists.newArrayList();
 
 
     public WFClient() {
-        gson = new GsonBuilder().create();
-        client = new OkHttpClient.Builder()
+        this(new OkHttpClient.Builder()
                 .followRedirects(false)
                 .followSslRedirects(false)
                 .connectTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                .build();
+                .build());
+    }
+
+    /**
+     * Creates a client that makes its requests with the given HTTP client (for tests).
+     */
+    WFClient(OkHttpClient client) {
+        gson = new GsonBuilder().create();
+        sessionOnlyGson = new GsonBuilder()
+                .setExclusionStrategies(new ExclusionStrategy() {
+                    @Override
+                    public boolean shouldSkipField(FieldAttributes f) {
+                        return f.getDeclaringClass() == SessionData.class && "rootLists".equals(f.getName());
+                    }
+
+                    @Override
+                    public boolean shouldSkipClass(Class<?> clazz) {
+                        return false;
+                    }
+                })
+                .create();
+        this.client = client;
         session = null;
+        index = new ListIndex();
     }
 
     /**
@@ -65,6 +131,7 @@ public class WFClient {
         }
 
         this.session = new SessionData();
+        clearJournal();
 
         try {
             doLoginRequest(username, password);
@@ -72,6 +139,8 @@ public class WFClient {
         } catch (IOException | BadLoginException e) {
             this.session = null;
             throw e;
+        } finally {
+            dispatchChanges();
         }
     }
 
@@ -88,7 +157,20 @@ public class WFClient {
      */
     public void logout() {
         checkLoggedIn();
-        session = null;
+        List<SettableFuture<Void>> abandoned;
+        synchronized (this) {
+            session = null;
+            index.clear();
+            publishIndex();
+            lastLoadDiff = null;
+            recordEvent(TreeChangeEvent.Type.RESET, null);
+            abandoned = takePendingConfirmations();
+            clearJournal();
+        }
+        for (SettableFuture<Void> f : abandoned) {
+            f.cancel(false);
+        }
+        dispatchChanges();
     }
 
     /**
@@ -97,7 +179,15 @@ public class WFClient {
      * @throws IOException
      */
     public void setSession(String session) throws IOException {
-        this.session = gson.fromJson(session, SessionData.class);
+        SessionData parsed = gson.fromJson(session, SessionData.class);
+        if (parsed != null && parsed.rootLists != null) parsed.rootLists = Utils.copyOnWrite(parsed.rootLists);
+        synchronized (this) {
+            this.session = parsed;
+            index.rebuild(parsed == null ? null : parsed.rootLists);
+            publishIndex();
+            recordEvent(TreeChangeEvent.Type.RESET, null);
+        }
+        dispatchChanges();
     }
 
     /**
@@ -106,7 +196,170 @@ public class WFClient {
      * @return the session string
      */
     public String getSession() {
-        return this.session == null ? null : gson.toJson(this.session);
+        SessionData toSave = getSessionToSave();
+        return toSave == null ? null : gson.toJson(toSave);
+    }
+
+    /**
+     * Like {@link #getSession()} but leaves out the user's lists, which can be saved separately (and
+     * much more compactly) with {@link #writeLists} and restored with {@link #readLists}.
+     * @return the session string
+     */
+    public synchronized String getSessionWithoutLists() {
+        SessionData toSave = getSessionToSave();
+        return toSave == null ? null : sessionOnlyGson.toJson(toSave);
+    }
+
+    /**
+     * Returns the session as it should be saved: without its unconfirmed operations if they're
+     * journaled, since by the time a saved copy is restored the journal may have had some of them
+     * confirmed (and they'd be pushed twice).
+     */
+    private synchronized SessionData getSessionToSave() {
+        if (session == null || journal == null) return session;
+        SessionData toSave = new SessionData();
+        toSave.sessionId = session.sessionId;
+        toSave.clientId = session.clientId;
+        toSave.username = session.username;
+        toSave.userId = session.userId;
+        toSave.initialTransactionId = session.initialTransactionId;
+        toSave.curTransactionId = session.curTransactionId;
+        toSave.dateJoinedTimestampInSeconds = session.dateJoinedTimestampInSeconds;
+        toSave.rootLists = session.rootLists;
+        return toSave;
+    }
+
+    /**
+     * Writes the user's lists as a {@link TreeSnapshot}.
+     * @param out where to write them
+     * @throws IOException if they couldn't be written
+     */
+    public void writeLists(OutputStream out) throws IOException {
+        checkLoggedIn();
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        synchronized (this) {
+            TreeSnapshot.write(session.rootLists, snapshot);
+        }
+        snapshot.writeTo(out);
+    }
+
+    /**
+     * Replaces the user's lists with the ones in the given {@link TreeSnapshot} (as written by
+     * {@link #writeLists}), like when restoring a session saved with {@link #getSessionWithoutLists()}.
+     * @param in the snapshot
+     * @throws IOException if it couldn't be read
+     */
+    public void readLists(InputStream in) throws IOException {
+        checkLoggedIn();
+        List<WFList> rootLists = Utils.copyOnWrite(TreeSnapshot.read(in));
+        synchronized (this) {
+            session.rootLists = rootLists;
+            index.rebuild(rootLists);
+            reapplyUnconfirmedOps(null); // the snapshot may be from before they were made
+            publishIndex();
+            recordEvent(TreeChangeEvent.Type.RESET, null);
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * Returns what changed in our tree with the last full load (from {@link #refresh()}, or when
+     * {@link #sync()} had to fall back to one), so that whatever's showing lists only has to update
+     * the ones that changed.
+     * @return the changes (null if there's been no load, or there was no tree before it)
+     */
+    public synchronized TreeDiff getLastLoadDiff() {
+        return lastLoadDiff;
+    }
+
+    /**
+     * Registers a listener to be told about every change to our tree from here on: the ones made
+     * through this client's mutators, the ones applied from the server (by a sync, push or replay of
+     * our unconfirmed operations) and the ones found by full loads.  Changes are batched: each event
+     * covers a run of changes of the same type, and the listener's handed all the events since its
+     * last call at once, in order, one call at a time.  Events are stamped with the tree version
+     * they brought us to (see {@link #getTreeVersion()}), so a listener can tell whether something
+     * it read is older than a change it's been told about.
+     *
+     * @param listener the listener
+     * @param executor what to call the listener on (a direct executor calls it on whichever thread
+     *                 made the change, after this client's locks have been released)
+     */
+    public void addChangeListener(TreeChangeListener listener, Executor executor) {
+        changeListeners.add(new ChangeListenerRegistration(Preconditions.checkNotNull(listener), Preconditions.checkNotNull(executor)));
+    }
+
+    /**
+     * Stops telling the given listener about changes (though it might still get a call that was
+     * already on its way).
+     */
+    public void removeChangeListener(TreeChangeListener listener) {
+        for (ChangeListenerRegistration registration : changeListeners) {
+            if (registration.listener == listener) changeListeners.remove(registration);
+        }
+    }
+
+    /**
+     * Returns the version of our tree: the version of the last change event, see {@link #addChangeListener}.
+     */
+    public synchronized long getTreeVersion() {
+        return treeVersion;
+    }
+
+    /**
+     * Returns whether there are changes that haven't been confirmed by the server yet.
+     */
+    public synchronized boolean hasUnconfirmedOperations() {
+        if (session == null || session.unconfirmedOps == null) return false;
+        for (List<PushPoll.Operation> ops : session.unconfirmedOps) {
+            if (!ops.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the journal that operations are written to as they're queued, and confirmed in as
+     * they're pushed, so they can survive the process dying without the whole session having to be
+     * saved after every change.  Call this after {@link #setSession}: the journal's what decides
+     * which operations are unconfirmed (sessions saved while it's set leave them out), so anything
+     * still pending in it becomes this session's unconfirmed operations (and is re-applied to its
+     * tree, which may have been saved before they were made) to be pushed with the next push.  Only
+     * a journal that's just been created takes on the session's own unconfirmed operations, for
+     * sessions saved before there was one.  If we're not logged in the journal's cleared since
+     * there's no session to push its operations from.
+     * @param journal the journal (null to stop journaling)
+     */
+    public void setJournal(OperationJournal journal) {
+        installJournal(journal);
+        dispatchChanges();
+    }
+
+    private synchronized void installJournal(OperationJournal journal) {
+        this.journal = journal;
+        if (journal == null) return;
+        if (session == null) {
+            clearJournal();
+            return;
+        }
+
+        List<List<PushPoll.Operation>> pending = journal.getPending();
+        if (pending.isEmpty()) {
+            if (session.unconfirmedOps == null || session.unconfirmedOps.isEmpty()) return;
+            if (journal.wasCreated()) { // a session saved before we journaled, start tracking what it was holding on to
+                for (List<PushPoll.Operation> ops : session.unconfirmedOps) {
+                    appendToJournal(ops);
+                }
+            } else { // the journal's the truth: they were confirmed after the session was saved
+                log.info("Dropping " + session.unconfirmedOps.size() + " operation batches the journal says were confirmed");
+                session.unconfirmedOps.clear();
+            }
+            return;
+        }
+
+        session.unconfirmedOps = Lists.newArrayList(pending);
+        reapplyUnconfirmedOps(recordChanges(TreeChangeEvent.Type.REMOTE));
+        publishIndex();
+        log.info("Restored " + pending.size() + " unconfirmed operation batches from the journal");
     }
 
     /**
@@ -118,12 +371,110 @@ public class WFClient {
     }
 
     /**
-     * Do a hard-refresh of all Workflowy data from the server (where the "true copy" resides)
+     * Do a hard-refresh of all Workflowy data from the server (where the "true copy" resides), unless
+     * a quick poll shows nothing's changed there since our copy was loaded.  If there's already a
+     * refresh in progress this just waits for (and shares the result of) that one.
      * @throws IOException
      */
     public void refresh() throws IOException {
         checkLoggedIn();
-        doInitialLoad();
+        runSingleFlight(true);
+    }
+
+    /**
+     * Bring our copy of the user's Workflowy up to date by polling the server for the operations
+     * that have happened since we last heard from it and applying them locally.  Much cheaper than
+     * {@link #refresh()} since it doesn't re-download the whole account, which it only falls back
+     * to if we're too far behind or get operations we can't apply.  If there's already a sync (or a
+     * refresh) in progress this just waits for (and shares the result of) that one.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        checkLoggedIn();
+        runSingleFlight(false);
+    }
+
+    /**
+     * Like {@link #refresh()} but runs in the background.
+     * @return a future that completes when the refresh is done (and fails if it couldn't be)
+     */
+    public ListenableFuture<Void> refreshAsync() {
+        checkLoggedIn();
+        return startSingleFlight(true);
+    }
+
+    /**
+     * Like {@link #sync()} but runs in the background.
+     * @return a future that completes when we're in sync (and fails if we couldn't get there)
+     */
+    public ListenableFuture<Void> syncAsync() {
+        checkLoggedIn();
+        return startSingleFlight(false);
+    }
+
+    /**
+     * Turns on group commit: rather than pushing each change to the server (and blocking until it's
+     * confirmed) the mutators queue their operations and return right away, and everything queued
+     * within the given window gets pushed together in a single request (or sooner, if the given
+     * number of operations pile up first).  Call {@link #flush()} to push whatever's queued now.
+     *
+     * @param windowMs how long to wait for more changes before pushing (0 turns group commit off)
+     * @param maxOps how many queued operations will trigger a push before the window is up
+     */
+    public synchronized void setGroupCommit(long windowMs, int maxOps) {
+        Preconditions.checkArgument(windowMs >= 0 && maxOps > 0);
+        groupCommitWindowMs = windowMs;
+        groupCommitMaxOps = maxOps;
+        if (windowMs == 0 && scheduledFlush != null) { // push anything that was waiting for the window
+            scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Push every operation we haven't had confirmed by the server yet, in a single request.  Will
+     * block until the server has confirmed them.
+     * @throws PushRejectedException if the server refused them (in which case they're dropped, see
+     *         {@link PushRejectedException})
+     * @throws IOException otherwise (in which case the operations stay queued and will be retried)
+     */
+    public void flush() throws IOException {
+        checkLoggedIn();
+        try {
+            pushUnconfirmedOps();
+        } finally {
+            dispatchChanges(); // whatever the server told us about
+        }
+    }
+
+    private void pushUnconfirmedOps() throws IOException {
+        synchronized (pushLock) {
+            List<List<PushPoll.Operation>> batch;
+            List<SettableFuture<Void>> confirmations;
+            long journalSeq;
+            synchronized (this) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                if (session == null) return;
+                batch = coalesceUnconfirmedOps();
+                confirmations = takePendingConfirmations();
+                journalSeq = journal == null ? 0 : journal.getLastSeq();
+            }
+            try {
+                syncJournal(); // one fsync for everything queued since the last push
+                if (!batch.isEmpty()) executePushPoll(batch);
+            } catch (PushRejectedException e) {
+                dropRejected(batch, journalSeq);
+                failAll(confirmations, e);
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                failAll(confirmations, e);
+                throw e;
+            }
+            confirmInJournal(journalSeq);
+            confirmAll(confirmations);
+        }
     }
 
     /**
@@ -136,7 +487,8 @@ public class WFClient {
 
     /**
      * Create a list as a root list on this account, inserted into the supplied index with the supplied
-     * name and description.  Will block until the list has been created on the server.
+     * name and description.  Will block until the list has been created on the server (unless group
+     * commit is on, see {@link #setGroupCommit}).
      * @param insertIndex the indext to insert into (null leaves it up to the client)
      * @param name the desired name, null for no name
      * @param description the desired description, null for no description
@@ -149,7 +501,8 @@ public class WFClient {
 
     /**
      * Create a list as a child of the given list, inserted into the supplied index with the supplied
-     * name and description.  Will block until the list has been created on the server.
+     * name and description.  Will block until the list has been created on the server (unless group
+     * commit is on, see {@link #setGroupCommit}).
      *
      * @param parent the list to insert into (null inserts as a root list)
      * @param insertIndex the indext to insert into (null leaves it up to the client)
@@ -160,55 +513,34 @@ public class WFClient {
      */
     public WFList createList(WFList parent, Integer insertIndex, String name, String description) throws IOException {
         checkLoggedIn();
+        List<PushPoll.Operation> ops = Lists.newArrayListWithCapacity(2);
+        WFList proxy = applyCreate(parent, insertIndex, name, description, ops);
+        dispatchChanges();
+        commit(ops);
+        return proxy;
+    }
 
-        long time = getClientTimeInSeconds();
-        String newId = UUID.randomUUID().toString();
-        String parentId = parent == null ? "None" : parent.id;
-        int idx = insertIndex == null ? 0 : insertIndex;
-
-        List<PushPoll.Operation> ops;
-        WFList proxy;
-
-        synchronized (this) {
-            // create a proxy object to hand back to the client in place of a full refresh
-            proxy = new WFList();
-            proxy.id = newId;
-            proxy.ch = null;
-            proxy.cp = null;
-            proxy.lm = time;
-            proxy.nm = name;
-            proxy.no = description;
-            // if we have a parent wire the proxy into it (otherwise to the root lists)
-            List<WFList> toAddProxyTo = session.rootLists;
-            if (parent != null) {
-                if (parent.ch == null) {
-                    parent.ch = Lists.newArrayListWithCapacity(1);
-                }
-                toAddProxyTo = parent.ch;
-            }
-            if (idx >= toAddProxyTo.size()) {
-                toAddProxyTo.add(proxy);
-            } else if (idx < 0) {
-                toAddProxyTo.add(0, proxy);
-            } else {
-                toAddProxyTo.add(idx, proxy);
+    /**
+     * Like {@link #createList} but doesn't block: the list is added to our tree right away, and the
+     * returned future completes (with the same list) once the server has confirmed it.
+     * @return a future for the list that was created, which fails if it couldn't be pushed
+     */
+    public ListenableFuture<WFList> createListAsync(WFList parent, Integer insertIndex, String name, String description) {
+        checkLoggedIn();
+        List<PushPoll.Operation> ops = Lists.newArrayListWithCapacity(2);
+        final WFList proxy = applyCreate(parent, insertIndex, name, description, ops);
+        dispatchChanges();
+        return Futures.transform(commitAsync(ops), new Function<Void, WFList>() {
+            @Override
+            public WFList apply(Void input) {
+                return proxy;
             }
-
-            PushPoll.Operation createOp = PushPoll.buildCreateOp(newId, parentId, idx, time);
-            PushPoll.Operation editOp = PushPoll.buildEditOp(newId, name, description, time + 1, time);
-
-            ops = Lists.newArrayList(createOp);
-            if (editOp != null) ops.add(editOp);
-        }
-
-        executePushPoll(ops);
-
-        return proxy;
+        }, MoreExecutors.directExecutor());
     }
 
     /**
      * Edit the given list to have the given name and description.  Will block until the list has
-     * been successfully created on the server.
+     * been successfully created on the server (unless group commit is on, see {@link #setGroupCommit}).
      *
      * @param toEdit the list to edit
      * @param newName the desired name (null for no change)
@@ -217,116 +549,387 @@ public class WFClient {
      */
     public void editList(WFList toEdit, String newName, String newDescription) throws IOException {
         checkLoggedIn();
-        long time = getClientTimeInSeconds();
-        Long prevLm = toEdit.lm;
-        PushPoll.Operation editOp;
-        synchronized (this) {
-            // set the proxy too
-            if (newName != null) toEdit.nm = newName;
-            if (newDescription != null) {
-                toEdit.no = newDescription.isEmpty() ? null : newDescription; // a workflowy backend behavior
-            }
-            toEdit.lm = time;
-
-            editOp = PushPoll.buildEditOp(toEdit.id, newName, newDescription, prevLm, time);
-        }
+        List<PushPoll.Operation> ops = applyEdit(toEdit, newName, newDescription);
+        dispatchChanges();
+        commit(ops);
+    }
 
-        executePushPoll(ImmutableList.of(editOp));
+    /**
+     * Like {@link #editList} but doesn't block: the list is edited right away, and the returned
+     * future completes once the server has confirmed it.
+     * @return a future that fails if the edit couldn't be pushed
+     */
+    public ListenableFuture<Void> editListAsync(WFList toEdit, String newName, String newDescription) {
+        checkLoggedIn();
+        List<PushPoll.Operation> ops = applyEdit(toEdit, newName, newDescription);
+        dispatchChanges();
+        return commitAsync(ops);
     }
 
     /**
-     * Set the given list to the supplied completion state.  Will block until it's confirmed by the server.
+     * Set the given list to the supplied completion state.  Will block until it's confirmed by the server
+     * (unless group commit is on, see {@link #setGroupCommit}).
      * @param toComplete
      * @param isComplete
      * @throws IOException
      */
     public void completeList(WFList toComplete, boolean isComplete) throws IOException {
         checkLoggedIn();
-        long time = getClientTimeInSeconds();
-
-        PushPoll.Operation completeOp;
-        synchronized (this) {
-            Long prevLm = toComplete.lm;
-            // set the proxy too
-            toComplete.cp = isComplete ? time : null;
-            toComplete.lm = time;
-            completeOp = PushPoll.buildCompleteOp(toComplete.id, isComplete, toComplete.cp, prevLm, time);
-        }
+        List<PushPoll.Operation> ops = applyComplete(toComplete, isComplete);
+        dispatchChanges();
+        commit(ops);
+    }
 
-        executePushPoll(ImmutableList.of(completeOp));
+    /**
+     * Like {@link #completeList} but doesn't block: the list is (un)completed right away, and the
+     * returned future completes once the server has confirmed it.
+     * @return a future that fails if the change couldn't be pushed
+     */
+    public ListenableFuture<Void> completeListAsync(WFList toComplete, boolean isComplete) {
+        checkLoggedIn();
+        List<PushPoll.Operation> ops = applyComplete(toComplete, isComplete);
+        dispatchChanges();
+        return commitAsync(ops);
     }
 
     /**
-     * Deletes the given list from this workflowy account.  Will block until it's confirmed by the server.
+     * Deletes the given list from this workflowy account.  Will block until it's confirmed by the server
+     * (unless group commit is on, see {@link #setGroupCommit}).
      * @param toDelete
      * @throws IOException
      */
     public void deleteList(WFList toDelete) throws IOException {
         checkLoggedIn();
-        long time = getClientTimeInSeconds();
-        Long prevLm = toDelete.lm;
-        PushPoll.Operation deleteOp;
+        List<PushPoll.Operation> ops = applyDelete(toDelete);
+        dispatchChanges();
+        commit(ops);
+    }
+
+    /**
+     * Like {@link #deleteList} but doesn't block: the list is removed from our tree right away, and
+     * the returned future completes once the server has confirmed it.
+     * @return a future that fails if the delete couldn't be pushed
+     */
+    public ListenableFuture<Void> deleteListAsync(WFList toDelete) {
+        checkLoggedIn();
+        List<PushPoll.Operation> ops = applyDelete(toDelete);
+        dispatchChanges();
+        return commitAsync(ops);
+    }
+
+    // these don't lock (so they never wait on a push or load), they read the last published index.
+    // Lists' children (and the root lists) are copy-on-write, so they can be iterated without
+    // locking too: each is seen as a consistent whole, though a list that's being moved can be
+    // missing from both its old and new parents' children for a moment.
+
+    public boolean isRootList(WFList list) {
+        return list != null && publishedIndex.get().isRoot(list.id);
+    }
+
+    public boolean hasList(WFList list) {
+        return list != null && publishedIndex.get().contains(list.id);
+    }
+
+    public WFList getParentList(WFList child) {
+        return child == null ? null : publishedIndex.get().getParent(child.id);
+    }
 
+    public WFList getListById(String listId) {
+        return publishedIndex.get().get(listId);
+    }
+
+    public List<WFList> getAncestryPath(WFList list) {
+        ListIndex current = publishedIndex.get(); // so the whole path comes from the same version
+        List<WFList> result = Lists.newArrayList();
+        while (list != null) {
+            result.add(list);
+            list = current.getParent(list.id);
+        }
+        return Lists.reverse(result);
+    }
+
+    @VisibleForTesting
+    synchronized ListIndex getIndex() {
+        return index;
+    }
+
+    /* Private methods */
+
+    /*
+     * Refreshes and syncs are single flight: while one's running, anyone else asking for the same
+     * thing (or for a sync while a refresh is running, since that's at least as good) gets that
+     * one's result rather than starting another.
+     */
+
+    private void runSingleFlight(boolean fullLoad) throws IOException {
+        SettableFuture<Void> joined;
+        SettableFuture<Void> ours = null;
         synchronized (this) {
-            // set the proxy (and delete it from parent)
-            toDelete.lm = time;
-            List<WFList> toDeleteFrom = null;
-            if (isRootList(toDelete)) {
-                toDeleteFrom = session.rootLists;
-            } else {
-                WFList parent = getParentList(toDelete);
-                if (parent != null) {
-                    toDeleteFrom = parent.ch;
+            joined = getInFlight(fullLoad);
+            if (joined == null) {
+                ours = SettableFuture.create();
+                setInFlight(fullLoad, ours);
+            }
+        }
+        if (ours != null) {
+            load(fullLoad, ours);
+            return;
+        }
+
+        try {
+            joined.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a " + (fullLoad ? "refresh" : "sync"));
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private ListenableFuture<Void> startSingleFlight(final boolean fullLoad) {
+        final SettableFuture<Void> ours;
+        synchronized (this) {
+            SettableFuture<Void> joined = getInFlight(fullLoad);
+            if (joined != null) return Futures.nonCancellationPropagating(joined);
+            ours = SettableFuture.create();
+            setInFlight(fullLoad, ours);
+        }
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(fullLoad, ours);
+                } catch (IOException | RuntimeException e) {
+                    // it's been handed to the future
                 }
             }
-            if (toDeleteFrom != null) {
-                toDeleteFrom.remove(Utils.getIndexOfListWithId(toDeleteFrom, toDelete));
+        });
+        return Futures.nonCancellationPropagating(ours); // so one caller can't cancel it for everyone
+    }
+
+    /**
+     * Does a refresh or sync in this thread, completing the given (in flight) future with how it went.
+     */
+    private void load(boolean fullLoad, SettableFuture<Void> inFlight) throws IOException {
+        try {
+            if (fullLoad) {
+                doRefresh();
+            } else {
+                doSync();
             }
-            deleteOp = PushPoll.buildDeleteOp(toDelete.id, prevLm, time);
+        } catch (IOException | RuntimeException e) {
+            clearInFlight(inFlight);
+            dispatchChanges(); // we may have gotten some of the way
+            inFlight.setException(e);
+            throw e;
         }
+        clearInFlight(inFlight);
+        dispatchChanges(); // (before anyone waiting on it hears it's done)
+        inFlight.set(null);
+    }
 
-        executePushPoll(ImmutableList.of(deleteOp));
+    private SettableFuture<Void> getInFlight(boolean fullLoad) {
+        if (fullLoad || inFlightSync == null) return inFlightRefresh;
+        return inFlightSync;
     }
 
+    private void setInFlight(boolean fullLoad, SettableFuture<Void> inFlight) {
+        if (fullLoad) {
+            inFlightRefresh = inFlight;
+        } else {
+            inFlightSync = inFlight;
+        }
+    }
 
-    public synchronized boolean isRootList(WFList list) {
-        return Utils.hasListWithId(session.rootLists, list);
+    private synchronized void clearInFlight(SettableFuture<Void> inFlight) {
+        if (inFlightRefresh == inFlight) inFlightRefresh = null;
+        if (inFlightSync == inFlight) inFlightSync = null;
     }
 
-    public synchronized boolean hasList(WFList list) {
-        return isRootList(list) || getParentList(list) != null;
+    private void doRefresh() throws IOException {
+        boolean haveTree;
+        synchronized (this) {
+            haveTree = session != null && session.rootLists != null;
+        }
+        if (haveTree && isUpToDate()) {
+            log.info("Nothing's changed since we last loaded, skipping the refresh");
+            return;
+        }
+        doInitialLoad();
     }
 
-    public synchronized WFList getParentList(WFList child) {
-        if (isRootList(child)) return null;
-        return Utils.getParentList(session.rootLists, child);
+    /**
+     * Checks (with an empty poll, which is tiny next to a full load or even reading our own saved
+     * tree back in) whether anything's happened on the server since our tree was last brought up to
+     * date, so callers can skip a {@link #refresh()} or {@link #sync()} and everything around it.
+     * Any operations the poll reports aren't applied, so that everything a load changes is in its
+     * {@link TreeDiff}.  Our tree doesn't have to be loaded (it might still be in a snapshot, see
+     * {@link #readLists}), just the session it was saved with.
+     * @return true if our tree is already up to date (false if we've changes to push)
+     * @throws IOException if the server couldn't be reached
+     */
+    public boolean isUpToDate() throws IOException {
+        checkLoggedIn();
+        String knownTransactionId;
+        Request req;
+        synchronized (this) {
+            if (session == null || needsFullLoad || session.curTransactionId == null || session.clientId == null) return false;
+            if (hasUnconfirmedOperations()) return false; // we'll have to push them and load again anyway
+            knownTransactionId = session.curTransactionId;
+            req = buildPushPoll(Collections.<PushPoll.Operation>emptyList());
+        }
+
+        Response res = executeRequest(req);
+        PushPoll.Response ppRes = gson.fromJson(res.body().charStream(), PushPoll.Response.class);
+        return knownTransactionId.equals(ppRes.results.get(0).new_most_recent_operation_transaction_id);
     }
 
-    public synchronized WFList getListById(final String listId) {
-        final WFList[] found = new WFList[] { null };
-        Utils.bfsLists(session.rootLists, new Function<WFList, Boolean>() {
-            @Override
-            public Boolean apply(WFList input) {
-                if (input.getId().equals(listId)) {
-                    found[0] = input;
-                    return true;
-                }
-                return null;
+    /**
+     * Returns whether our tree can be brought up to date incrementally.  Must be called holding this
+     * client's lock.
+     */
+    private boolean canSync() {
+        return session != null && !needsFullLoad && session.rootLists != null && session.curTransactionId != null && session.clientId != null;
+    }
+
+    private void doSync() throws IOException {
+        boolean canSync;
+        synchronized (this) {
+            canSync = canSync();
+        }
+        if (!canSync) { // we've never loaded (or our tree can't be trusted)
+            doInitialLoad();
+            return;
+        }
+
+        // push anything we haven't gotten confirmed yet, then poll for anything else that's happened
+        flush();
+        synchronized (pushLock) {
+            executePushPoll(Collections.<List<PushPoll.Operation>>emptyList());
+        }
+
+        synchronized (this) {
+            if (!needsFullLoad) return;
+        }
+        log.info("Couldn't sync incrementally, doing a full load");
+        doInitialLoad();
+    }
+
+    /**
+     * Makes the index as it is now what the readers see.  Must be called holding this client's
+     * lock, after every change to the index.
+     */
+    private void publishIndex() {
+        publishedIndex.set(index.snapshot());
+    }
+
+    /**
+     * Applies our unconfirmed operations to our tree, for when it's been restored from somewhere
+     * that might not have them.  Must be called holding this client's lock.
+     * @param changes where to record what they changed (null not to)
+     */
+    private void reapplyUnconfirmedOps(TreeChanges changes) {
+        if (session.rootLists == null || session.unconfirmedOps == null) return;
+        OperationApplier applier = new OperationApplier(session.rootLists, index, changes);
+        for (List<PushPoll.Operation> ops : session.unconfirmedOps) {
+            for (PushPoll.Operation op : ops) {
+                applier.apply(op); // if it doesn't apply our tree's out of date anyway, the next sync will fix it
             }
-        });
-        return found[0];
+        }
     }
 
-    public synchronized List<WFList> getAncestryPath(WFList list) {
-        List<WFList> result = Lists.newArrayList();
-        while (list != null) {
-            result.add(list);
-            list = getParentList(list);
+    /**
+     * Creates the proxy for a new list and wires it into our tree, adding the operations that
+     * create it on the server to the given list.
+     */
+    private synchronized WFList applyCreate(WFList parent, Integer insertIndex, String name, String description, List<PushPoll.Operation> ops) {
+        long time = getClientTimeInSeconds();
+        String newId = UUID.randomUUID().toString();
+        String parentId = parent == null ? OperationApplier.ROOT_PARENT_ID : parent.id;
+        int idx = insertIndex == null ? 0 : insertIndex;
+
+        // create a proxy object to hand back to the client in place of a full refresh
+        WFList proxy = new WFList();
+        proxy.id = newId;
+        proxy.ch = null;
+        proxy.cp = null;
+        proxy.lm = time;
+        proxy.nm = name;
+        proxy.no = description;
+        // if we have a parent wire the proxy into it (otherwise to the root lists)
+        List<WFList> toAddProxyTo = session.rootLists;
+        if (parent != null) {
+            parent.ch = Utils.copyOnWrite(parent.ch);
+            toAddProxyTo = parent.ch;
         }
-        return Lists.reverse(result);
+        if (idx >= toAddProxyTo.size()) {
+            toAddProxyTo.add(proxy);
+        } else if (idx < 0) {
+            toAddProxyTo.add(0, proxy);
+        } else {
+            toAddProxyTo.add(idx, proxy);
+        }
+        index.put(proxy, parent);
+        index.invalidateSubtreeHashes(parent);
+        publishIndex();
+        recordChanges(TreeChangeEvent.Type.LOCAL).added(proxy, parent);
+
+        PushPoll.Operation createOp = PushPoll.buildCreateOp(newId, parentId, idx, time);
+        PushPoll.Operation editOp = PushPoll.buildEditOp(newId, name, description, time + 1, time);
+
+        ops.add(createOp);
+        if (editOp != null) ops.add(editOp);
+        return proxy;
     }
 
-    /* Private methods */
+    private synchronized List<PushPoll.Operation> applyEdit(WFList toEdit, String newName, String newDescription) {
+        long time = getClientTimeInSeconds();
+        Long prevLm = toEdit.lm;
+        // set the proxy too
+        if (newName != null) toEdit.nm = newName;
+        if (newDescription != null) {
+            toEdit.no = newDescription.isEmpty() ? null : newDescription; // a workflowy backend behavior
+        }
+        toEdit.lm = time;
+        index.invalidateSubtreeHashes(toEdit);
+        recordChanges(TreeChangeEvent.Type.LOCAL).edited(toEdit, index.getParent(toEdit.id));
+
+        return ImmutableList.of(PushPoll.buildEditOp(toEdit.id, newName, newDescription, prevLm, time));
+    }
+
+    private synchronized List<PushPoll.Operation> applyComplete(WFList toComplete, boolean isComplete) {
+        long time = getClientTimeInSeconds();
+        Long prevLm = toComplete.lm;
+        // set the proxy too
+        toComplete.cp = isComplete ? time : null;
+        toComplete.lm = time;
+        index.invalidateSubtreeHashes(toComplete);
+        recordChanges(TreeChangeEvent.Type.LOCAL).edited(toComplete, index.getParent(toComplete.id));
+        return ImmutableList.of(PushPoll.buildCompleteOp(toComplete.id, isComplete, toComplete.cp, prevLm, time));
+    }
+
+    private synchronized List<PushPoll.Operation> applyDelete(WFList toDelete) {
+        long time = getClientTimeInSeconds();
+        Long prevLm = toDelete.lm;
+        // set the proxy (and delete it from parent)
+        toDelete.lm = time;
+        index.invalidateSubtreeHashes(toDelete);
+        if (index.contains(toDelete.id)) {
+            WFList parent = index.getParent(toDelete.id);
+            recordChanges(TreeChangeEvent.Type.LOCAL).removed(toDelete, parent);
+            if (parent == null) {
+                session.rootLists.remove(Utils.getIndexOfListWithId(session.rootLists, toDelete));
+            } else {
+                parent.ch = Utils.copyOnWrite(parent.ch);
+                parent.ch.remove(Utils.getIndexOfListWithId(parent.ch, toDelete));
+                if (parent.ch.isEmpty()) parent.ch = null; // matches what a fresh load gives us
+            }
+        }
+        index.remove(toDelete);
+        publishIndex();
+        return ImmutableList.of(PushPoll.buildDeleteOp(toDelete.id, prevLm, time));
+    }
 
     private void doLoginRequest(String username, String password) throws IOException, BadLoginException {
         Request req = buildRequest(LOGIN_URL)
@@ -355,81 +958,496 @@ public class WFClient {
         }
     }
 
+    /**
+     * Loads the whole account from the server, replacing our tree (and then pushing any unconfirmed
+     * operations and loading again, so we end up with their results).  None of the network requests
+     * are made holding this client's lock, so readers and mutators aren't held up by them.
+     */
     private void doInitialLoad() throws IOException {
+        while (true) {
+            Initialization.Response parsed = fetchInitializationData();
+
+            synchronized (this) {
+                if (session == null) return; // logged out while we were loading
+                installInitializationData(parsed);
+                if (!hasUnconfirmedOperations()) {
+                    confirmAll(takePendingConfirmations()); // anything they were waiting on coalesced away
+                    return;
+                }
+            }
+
+            // try and replay any unconfirmed operations that the user wanted (which hopefully are still valid)
+            // IDEA: could try to introspect here and see which ones are still relevant
+            flush();
+            // and go around again to load the results of our late pushes
+        }
+    }
+
+    private Initialization.Response fetchInitializationData() throws IOException {
         String initUrl = String.format(API_URL, "get_initialization_data?client_version=16");
         Request req = buildRequest(initUrl)
                 .get()
                 .build();
         Response res = executeRequest(req);
-        Initialization.Response parsed = gson.fromJson(res.body().charStream(), Initialization.Response.class);
+        return gson.fromJson(res.body().charStream(), Initialization.Response.class);
+    }
 
+    /**
+     * Replaces our session's tree and transaction state with what was just loaded (with any
+     * unconfirmed operations applied on top so they don't disappear while they're waiting to be
+     * pushed).  Must be called holding this client's lock.
+     */
+    private void installInitializationData(Initialization.Response parsed) {
+        session.clientId = Preconditions.checkNotNull(parsed.projectTreeData.clientId);
+        session.username = Preconditions.checkNotNull(parsed.settings.username);
+        session.initialTransactionId = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.initialMostRecentOperationTransactionId);
+        session.curTransactionId = session.initialTransactionId;
+        session.dateJoinedTimestampInSeconds = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.dateJoinedTimestampInSeconds);
+
+        // work out what changed before the old tree's lists get reused (and so overwritten)
+        List<WFList> newRootLists = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.rootProjectChildren);
+        if (session.rootLists != null) {
+            ListIndex loadedIndex = new ListIndex();
+            loadedIndex.rebuild(newRootLists);
+            lastLoadDiff = TreeDiff.compute(session.rootLists, index, newRootLists, loadedIndex);
+        } else {
+            lastLoadDiff = null;
+        }
+
+        // reuse any existing WFList objects that we have to preserve referential equality
+        ListIndex newIndex = new ListIndex();
+        session.rootLists = Utils.copyOnWrite(Utils.getReusedLists(index, newRootLists, newIndex));
+        index = newIndex;
+        if (lastLoadDiff == null) {
+            recordEvent(TreeChangeEvent.Type.RESET, null);
+        } else if (!lastLoadDiff.isEmpty()) {
+            recordEvent(TreeChangeEvent.Type.LOAD, lastLoadDiff);
+        }
+        reapplyUnconfirmedOps(recordChanges(TreeChangeEvent.Type.REMOTE));
+        publishIndex();
+        needsFullLoad = false;
+
+
+        if (parsed.globals == null) parsed.globals = Collections.emptyList();
+        for (List<Object> varPair : parsed.globals) {
+            if (varPair.size() != 2) continue;
+            String varName = varPair.get(0) == null ? null : varPair.get(0).toString();
+            String varVal = varPair.get(1) == null ? null : varPair.get(1).toString();
+            if ("USER_ID".equals(varName)) {
+                session.userId = varVal;
+            }
+        }
+    }
+
+    /**
+     * Queue the given operations to be pushed to the server: right away (blocking until they're
+     * confirmed) normally, or with the next group commit if that's turned on.
+     */
+    private void commit(List<PushPoll.Operation> ops) throws IOException {
+        boolean pushNow;
         synchronized (this) {
-            session.clientId = Preconditions.checkNotNull(parsed.projectTreeData.clientId);
-            session.username = Preconditions.checkNotNull(parsed.settings.username);
-            session.initialTransactionId = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.initialMostRecentOperationTransactionId);
-            session.curTransactionId = session.initialTransactionId;
-            session.dateJoinedTimestampInSeconds = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.dateJoinedTimestampInSeconds);
-
-            // reuse any existing WFList objects that we have to preserve referential equality
-            List<WFList> newRootLists = Preconditions.checkNotNull(parsed.projectTreeData.mainProjectTreeInfo.rootProjectChildren);
-            session.rootLists = Utils.getReusedLists(session.rootLists, newRootLists);
-
-
-            if (parsed.globals == null) parsed.globals = Collections.emptyList();
-            for (List<Object> varPair : parsed.globals) {
-                if (varPair.size() != 2) continue;
-                String varName = varPair.get(0) == null ? null : varPair.get(0).toString();
-                String varVal = varPair.get(1) == null ? null : varPair.get(1).toString();
-                if ("USER_ID".equals(varName)) {
-                    session.userId = varVal;
+            queue(ops);
+            pushNow = groupCommitWindowMs == 0;
+            if (!pushNow) scheduleGroupCommit();
+        }
+        if (pushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Queue the given operations to be pushed to the server on a background thread: right away
+     * normally, or with the next group commit if that's turned on.
+     * @return a future that completes when they've been confirmed by the server
+     */
+    private synchronized ListenableFuture<Void> commitAsync(List<PushPoll.Operation> ops) {
+        SettableFuture<Void> confirmation = queue(ops);
+        if (groupCommitWindowMs == 0) {
+            scheduleFlush(0);
+        } else {
+            scheduleGroupCommit();
+        }
+        return confirmation;
+    }
+
+    /**
+     * Adds the operations to the unconfirmed ones in the session.  Must be called holding this
+     * client's lock.
+     * @return a future to complete when they've been pushed
+     */
+    private SettableFuture<Void> queue(List<PushPoll.Operation> ops) {
+        if (session.unconfirmedOps == null) {
+            session.unconfirmedOps = Lists.newArrayList();
+        }
+        session.unconfirmedOps.add(ops);
+        appendToJournal(ops);
+        SettableFuture<Void> confirmation = SettableFuture.create();
+        pendingConfirmations.add(confirmation);
+        return confirmation;
+    }
+
+    /**
+     * Makes sure a group commit is coming: at the end of the window, or right away if enough
+     * operations have piled up.  Must be called holding this client's lock.
+     */
+    private void scheduleGroupCommit() {
+        int numQueued = 0;
+        for (List<PushPoll.Operation> queued : session.unconfirmedOps) {
+            numQueued += queued.size();
+        }
+        if (numQueued >= groupCommitMaxOps) {
+            scheduleFlush(0);
+        } else if (scheduledFlush == null) {
+            scheduleFlush(groupCommitWindowMs);
+        }
+    }
+
+    /**
+     * Hands back (and forgets) the futures waiting on everything that's queued right now.  Must be
+     * called holding this client's lock.
+     */
+    private List<SettableFuture<Void>> takePendingConfirmations() {
+        List<SettableFuture<Void>> taken = pendingConfirmations;
+        pendingConfirmations = Lists.newArrayList();
+        return taken;
+    }
+
+    /*
+     * Journal failures are only logged: the operations are still queued in memory (and in the
+     * session, whenever it's next saved), they're just not as durable as we'd like.
+     */
+
+    private void appendToJournal(List<PushPoll.Operation> ops) {
+        if (journal == null) return;
+        try {
+            journal.append(ops);
+        } catch (IOException e) {
+            log.warning("Couldn't journal operations: " + e);
+        }
+    }
+
+    private void syncJournal() {
+        OperationJournal j = journal;
+        if (j == null) return;
+        try {
+            j.sync();
+        } catch (IOException e) {
+            log.warning("Couldn't sync the journal: " + e);
+        }
+    }
+
+    private void confirmInJournal(long seq) {
+        OperationJournal j = journal;
+        if (j == null || seq == 0) return;
+        try {
+            j.confirm(seq);
+        } catch (IOException e) {
+            log.warning("Couldn't confirm operations in the journal: " + e);
+        }
+    }
+
+    private void clearJournal() {
+        if (journal == null) return;
+        try {
+            journal.clear();
+        } catch (IOException e) {
+            log.warning("Couldn't clear the journal: " + e);
+        }
+    }
+
+    private static void confirmAll(List<SettableFuture<Void>> confirmations) {
+        for (SettableFuture<Void> f : confirmations) {
+            f.set(null);
+        }
+    }
+
+    private static void failAll(List<SettableFuture<Void>> confirmations, Throwable cause) {
+        for (SettableFuture<Void> f : confirmations) {
+            f.setException(cause);
+        }
+    }
+
+    /**
+     * Replaces everything in {@link SessionData#unconfirmedOps} with a single (coalesced, see
+     * {@link OperationCoalescer}) list of the same operations, so the queue stays small however many
+     * mutations were made while it was waiting.  Must be called holding this client's lock.
+     * @return the batch to push: the queue's only entry, or empty if there's nothing left to push
+     */
+    private List<List<PushPoll.Operation>> coalesceUnconfirmedOps() {
+        if (session.unconfirmedOps == null) {
+            session.unconfirmedOps = Lists.newArrayList();
+        }
+        List<PushPoll.Operation> ops = Lists.newArrayList();
+        for (List<PushPoll.Operation> queued : session.unconfirmedOps) {
+            ops.addAll(queued);
+        }
+        List<PushPoll.Operation> coalesced = OperationCoalescer.coalesce(ops);
+
+        session.unconfirmedOps.clear();
+        if (coalesced.isEmpty()) return Collections.emptyList();
+        session.unconfirmedOps.add(coalesced);
+        return ImmutableList.of(coalesced);
+    }
+
+    /**
+     * Schedule a {@link #flush()} on a background thread after the given delay (replacing any
+     * that's already scheduled).  Must be called holding this client's lock.
+     */
+    private void scheduleFlush(long delayMs) {
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        scheduledFlush = getBackgroundExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isLoggedIn()) flush();
+                } catch (IOException | RuntimeException e) {
+                    log.warning("Background push failed (will retry on the next push): " + e);
                 }
             }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
 
-            // try and replay any unconfirmed operations that the user wanted (which hopefully are still valid)
-            // IDEA: could try to introspect here and see which ones are still relevant
-            if (session.unconfirmedOps == null) {
-                session.unconfirmedOps = Lists.newArrayList();
+    private synchronized ListeningScheduledExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("WFClient-background-%d")
+                    .build()
+            ));
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Push the given batch of unconfirmed operations (which must already be queued in the session)
+     * to the server as a single transaction.  Callers pushing operations should hold the push lock
+     * so that pushes don't race each other.
+     * @param batch the operations to push (empty just polls)
+     * @return the result of the push / poll
+     */
+    private PushPoll.ResponseResult executePushPoll(List<List<PushPoll.Operation>> batch) throws IOException {
+        Request req;
+        synchronized (this) {
+            List<PushPoll.Operation> ops = Lists.newArrayList();
+            for (List<PushPoll.Operation> queued : batch) {
+                ops.addAll(queued);
             }
-            int numReplaysSucceeded = 0;
-            for (List<PushPoll.Operation> ops : ImmutableList.copyOf(session.unconfirmedOps)) {
-                executePushPoll(ops);
-                numReplaysSucceeded++;
+            req = buildPushPoll(ops);
+        }
+        Response res = executeRequest(req);
+        if (!res.isSuccessful()) {
+            res.body().close();
+            String message = "push_and_poll failed with HTTP " + res.code();
+            if (!batch.isEmpty() && isRefusal(res.code())) throw new PushRejectedException(message);
+            throw new IOException(message); // (like an expired session's redirect to the login page)
+        }
+        PushPoll.Response ppRes = gson.fromJson(res.body().charStream(), PushPoll.Response.class);
+        synchronized (this) {
+            for (List<PushPoll.Operation> confirmed : batch) {
+                removeByReference(session.unconfirmedOps, confirmed);
             }
-            if (numReplaysSucceeded > 0) { // resync to load the results of our late pushes
-                doInitialLoad();
+            PushPoll.ResponseResult result = ppRes.results.get(0);
+            session.curTransactionId = Preconditions.checkNotNull(result.new_most_recent_operation_transaction_id);
+            if (!applyRemoteOperations(result)) {
+                needsFullLoad = true;
             }
+            // anything queued while this was in flight is newer than what the server's told us
+            reapplyUnconfirmedOps(recordChanges(TreeChangeEvent.Type.REMOTE));
+            publishIndex(); // even if we couldn't apply everything, we'll have applied some
+            return result;
         }
     }
 
-    private void executePushPoll(List<PushPoll.Operation> ops) throws IOException {
-        Request req;
+    /**
+     * Returns whether an HTTP status code from a push means the server won't take the operations in
+     * it (rather than that we should try again later, or log in again).
+     */
+    private static boolean isRefusal(int code) {
+        return code >= 400 && code < 500 && code != 401 && code != 403 && code != 408 && code != 429;
+    }
+
+    /**
+     * Forgets a batch of operations the server refused (but not anything queued since it was
+     * taken), and makes sure the next refresh or sync reloads our tree to undo them.
+     * @param batch the refused batch
+     * @param journalSeq the journal's last sequence number when the batch was taken
+     */
+    private void dropRejected(List<List<PushPoll.Operation>> batch, long journalSeq) {
+        log.warning("The server refused " + batch.size() + " operation batches, dropping them");
+        synchronized (this) {
+            if (session != null) {
+                for (List<PushPoll.Operation> rejected : batch) {
+                    removeByReference(session.unconfirmedOps, rejected);
+                }
+            }
+            needsFullLoad = true;
+        }
+        confirmInJournal(journalSeq); // (so they're not replayed either)
+    }
+
+    /**
+     * Applies the operations other clients have made (as reported by a push / poll) to our tree,
+     * followed by the ones the server says it ran for us (which are usually already reflected by
+     * our proxy changes, but this makes sure we end up with what the server actually did).
+     * @return false if we couldn't (so our tree is out of date and needs a full load)
+     */
+    private boolean applyRemoteOperations(PushPoll.ResponseResult result) {
+        if (Boolean.TRUE.equals(result.error_encountered_in_remote_operations)) return false;
+        if (session.rootLists == null) return false;
+
+        List<PushPoll.Operation> remoteOps;
+        List<PushPoll.Operation> serverRunOps;
+        try {
+            remoteOps = OperationApplier.parseTransactions(gson, result.concurrent_remote_operation_transactions);
+            serverRunOps = OperationApplier.parseTransaction(gson, result.server_run_operation_transaction_json);
+        } catch (JsonParseException e) {
+            log.warning("Couldn't parse remote operations: " + e);
+            return false;
+        }
+        if (remoteOps.size() > MAX_SYNC_OPERATIONS) return false;
+
+        OperationApplier applier = new OperationApplier(session.rootLists, index, recordChanges(TreeChangeEvent.Type.REMOTE));
+        return applier.applyAll(remoteOps) && applier.applyAll(serverRunOps);
+    }
+
+    /*
+     * Changes to the tree are recorded (holding this client's lock) as they're made, and runs of
+     * them of the same type become events.  The events are handed to the listeners by
+     * dispatchChanges(), which the public methods call once they've let go of the lock.
+     */
+
+    /**
+     * Returns where to record changes of the given type, ending the run of changes being recorded
+     * if it was of another type.  Must be called holding this client's lock.
+     */
+    private TreeChanges recordChanges(TreeChangeEvent.Type type) {
+        if (pendingChangesType != type) sealChanges();
+        if (pendingChanges == null) {
+            pendingChanges = new TreeChanges();
+            pendingChangesType = type;
+        }
+        return pendingChanges;
+    }
+
+    /**
+     * Records a change to the tree that we already know the whole of (null changes for a reset).
+     * Must be called holding this client's lock.
+     */
+    private void recordEvent(TreeChangeEvent.Type type, TreeDiff changes) {
+        sealChanges();
+        undispatchedEvents.add(new TreeChangeEvent(++treeVersion, type, changes));
+    }
+
+    /**
+     * Turns the run of changes being recorded (if any) into an event.  Must be called holding this
+     * client's lock.
+     */
+    private void sealChanges() {
+        if (pendingChanges != null && !pendingChanges.isEmpty()) {
+            undispatchedEvents.add(new TreeChangeEvent(++treeVersion, pendingChangesType, pendingChanges.toDiff()));
+        }
+        pendingChanges = null;
+        pendingChangesType = null;
+    }
+
+    /**
+     * Hands the change events recorded so far to the listeners.  Must not be called holding this
+     * client's lock (since a listener on a direct executor gets called right here).
+     */
+    private void dispatchChanges() {
         synchronized (this) {
-            String transactionId = session.curTransactionId;
+            sealChanges();
+            if (undispatchedEvents.isEmpty()) return;
+            List<TreeChangeEvent> events = ImmutableList.copyOf(undispatchedEvents);
+            undispatchedEvents.clear();
+            for (ChangeListenerRegistration registration : changeListeners) {
+                registration.enqueue(events); // in here so everyone gets events in version order
+            }
+        }
+        for (ChangeListenerRegistration registration : changeListeners) {
+            registration.deliver();
+        }
+    }
 
-            PushPoll.Transaction txn = new PushPoll.Transaction();
-            txn.most_recent_operation_transaction_id = transactionId;
-            txn.operations = ops;
+    /**
+     * A listener and the events it hasn't been handed yet.  At most one delivery runs on its
+     * executor at a time, handing over everything that's queued up until there's nothing left.
+     */
+    private static class ChangeListenerRegistration implements Runnable {
+        final TreeChangeListener listener;
+        final Executor executor;
+        private final List<TreeChangeEvent> queued = Lists.newArrayList();
+        private boolean scheduled;
+
+        ChangeListenerRegistration(TreeChangeListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
 
-            PushPoll.Data data = new PushPoll.Data();
-            data.add(txn);
+        synchronized void enqueue(List<TreeChangeEvent> events) {
+            queued.addAll(events);
+        }
 
-            req = buildPushPoll(data);
-            if (session.unconfirmedOps == null) {
-                session.unconfirmedOps = Lists.newArrayList();
+        void deliver() {
+            synchronized (this) {
+                if (scheduled || queued.isEmpty()) return;
+                scheduled = true;
             }
-            if (!session.unconfirmedOps.contains(ops)) { // might be a retry (in which case it'll already be there)
-                session.unconfirmedOps.add(ops);
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                log.warning("Couldn't deliver tree changes: " + e);
             }
         }
-        Response res = executeRequest(req);
-        PushPoll.Response ppRes = gson.fromJson(res.body().charStream(), PushPoll.Response.class);
-        synchronized (this) {
-            // TODO: might need to get introspective on the HTTP code of the response to know whether we should remove the unconfirmed ops
-            session.unconfirmedOps.remove(ops);
-            session.curTransactionId = Preconditions.checkNotNull(ppRes.results.get(0).new_most_recent_operation_transaction_id);
+
+        @Override
+        public void run() {
+            while (true) {
+                List<TreeChangeEvent> events;
+                synchronized (this) {
+                    if (queued.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    events = ImmutableList.copyOf(queued);
+                    queued.clear();
+                }
+                try {
+                    listener.onTreeChanged(events);
+                } catch (RuntimeException e) {
+                    log.warning("Tree change listener failed: " + e);
+                }
+            }
         }
     }
 
+    private static <T> void removeByReference(List<T> from, T toRemove) {
+        if (from == null) return;
+        for (int i = 0; i < from.size(); i++) {
+            if (from.get(i) == toRemove) {
+                from.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Builds a push / poll of the given operations (which just polls if there aren't any) as a
+     * transaction following the last one we know about.  Must be called holding this client's lock.
+     */
+    private Request buildPushPoll(List<PushPoll.Operation> ops) {
+        PushPoll.Transaction txn = new PushPoll.Transaction();
+        txn.most_recent_operation_transaction_id = session.curTransactionId;
+        txn.operations = ops;
+
+        PushPoll.Data data = new PushPoll.Data();
+        data.add(txn);
+        return buildPushPoll(data);
+    }
+
     private Request buildPushPoll(PushPoll.Data data) {
         String pushPollId = "WB79Gp0T"; // TODO: Should we generate this somehow?
 
@@ -2,7 +2,11 @@ package com.rmnoon.workflowy.client;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
 
@@ -15,7 +19,23 @@ public class WFList {
     String no; // note (description)
     Long cp; // complete (non-null / present if complete),
     long lm; // last modified (in terms of seconds since account creation)
-    List<WFList> ch; // children
+    // children.  Once a list's in a client's tree its children can be read without the client's
+    // lock, so they're never changed in place unless they're a CopyOnWriteArrayList (see
+    // Utils#copyOnWrite): a reader iterating them sees them as they were when it started.
+    volatile List<WFList> ch;
+
+    // a hash of this list's content and all of its descendants', so comparing two lists (or
+    // looking them up in a hash-based collection) doesn't have to walk their whole subtrees.  It's
+    // computed when it's first needed and has to be invalidated for a list and all its ancestors
+    // when the list changes (see ListIndex#invalidateSubtreeHashes).  If a list's hash is valid so
+    // are all of its descendants', and if it isn't none of its ancestors' are.
+    //
+    // Since lists can be read (and so hashed) without the lock their writers hold, a hash is stamped
+    // with the modification count it was computed at rather than just marked valid: it's only valid
+    // while the count hasn't moved, so an invalidation that lands while it's being computed can't be
+    // overwritten.  Only writers (one at a time) bump the count.
+    private transient volatile int modCount;
+    private transient volatile HashStamp subtreeHash;
 
     public String getId() {
         return id;
@@ -33,6 +53,13 @@ public class WFList {
         return cp != null;
     }
 
+    /**
+     * Returns when this list was last changed (in seconds since the account was created).
+     */
+    public long getLastModified() {
+        return lm;
+    }
+
     public List<WFList> getChildren() {
         return ch;
     }
@@ -50,6 +77,94 @@ public class WFList {
         this.cp = other.cp;
         this.lm = other.lm;
         this.ch = other.ch;
+        invalidateSubtreeHash();
+    }
+
+    /**
+     * Returns the hash of this list and all of its descendants, computing (and caching) it and any
+     * of its descendants' that aren't cached.  Lists with the same hash have the same content (with
+     * overwhelming probability).
+     */
+    long getSubtreeHash() {
+        HashStamp stamp = subtreeHash;
+        if (stamp == null || stamp.modCount != modCount) {
+            stamp = computeSubtreeHashes(this);
+        }
+        return stamp.hash;
+    }
+
+    /**
+     * Marks this list's cached subtree hash out of date (but not its ancestors').
+     * @return whether it was valid
+     */
+    boolean invalidateSubtreeHash() {
+        boolean wasValid = isSubtreeHashValid();
+        modCount++; // (even if it wasn't, in case it's being computed right now)
+        return wasValid;
+    }
+
+    private boolean isSubtreeHashValid() {
+        HashStamp stamp = subtreeHash;
+        return stamp != null && stamp.modCount == modCount;
+    }
+
+    /**
+     * Computes the hashes of the given list and any of its descendants that need it, children
+     * first.  It's done with a stack of our own rather than by recursing so deep trees can't
+     * overflow the real one.
+     * @return the given list's hash (which may already be out of date, if it's being changed)
+     */
+    private static HashStamp computeSubtreeHashes(WFList list) {
+        HashStamp result = null;
+        Deque<WFList> toHash = Queues.newArrayDeque();
+        toHash.push(list);
+        while (!toHash.isEmpty()) {
+            WFList cur = toHash.peek();
+            int modCount = cur.modCount; // (before anything the hash is computed from is read)
+            List<WFList> children = cur.ch;
+            boolean childrenReady = true;
+            if (children != null) {
+                for (WFList child : children) {
+                    if (!child.isSubtreeHashValid()) {
+                        toHash.push(child);
+                        childrenReady = false;
+                    }
+                }
+            }
+            if (childrenReady) {
+                toHash.pop();
+                HashStamp stamp = new HashStamp(cur.hashContent(children), modCount);
+                cur.subtreeHash = stamp;
+                if (cur == list) result = stamp;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes this list's fields and the given children's subtree hashes.
+     */
+    private long hashContent(List<WFList> children) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putString(hasher, id);
+        putString(hasher, nm);
+        putString(hasher, no);
+        hasher.putBoolean(cp != null);
+        if (cp != null) hasher.putLong(cp);
+        hasher.putLong(lm);
+        hasher.putInt(children == null ? -1 : children.size());
+        if (children != null) {
+            for (WFList child : children) {
+                HashStamp stamp = child.subtreeHash;
+                hasher.putLong(stamp == null ? 0 : stamp.hash);
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static void putString(Hasher hasher, String s) {
+        hasher.putInt(s == null ? -1 : s.length());
+        if (s != null) hasher.putUnencodedChars(s);
     }
 
     @Override
@@ -64,6 +179,10 @@ public class WFList {
                 .toString();
     }
 
+    /**
+     * Lists are equal if they and all of their descendants have the same content, which is checked
+     * by comparing their own fields and then their subtree hashes (rather than their children).
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -74,11 +193,23 @@ public class WFList {
                 Objects.equals(nm, wfList.nm) &&
                 Objects.equals(no, wfList.no) &&
                 Objects.equals(cp, wfList.cp) &&
-                Objects.equals(ch, wfList.ch);
+                (ch == null) == (wfList.ch == null) &&
+                getSubtreeHash() == wfList.getSubtreeHash();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, nm, no, cp, lm, ch);
+        long hash = getSubtreeHash();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static class HashStamp {
+        final long hash;
+        final int modCount; // of the list when it was computed
+
+        HashStamp(long hash, int modCount) {
+            this.hash = hash;
+            this.modCount = modCount;
+        }
     }
 }
@@ -0,0 +1,133 @@
+package com.rmnoon.workflowy.app;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the service's work queue.
+ */
+public class PriorityWorkQueueTest {
+
+    private final CountDownLatch idle = new CountDownLatch(1);
+    private final PriorityWorkQueue queue = new PriorityWorkQueue("test", 2, new Runnable() {
+        @Override
+        public void run() {
+            idle.countDown();
+        }
+    });
+    private final List<String> ran = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    @Test
+    public void testUserWorkGoesFirst() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit(PriorityWorkQueue.Lane.BACKGROUND, null, blockUntil(release, "refresh 1"));
+        queue.submit(PriorityWorkQueue.Lane.BACKGROUND, null, record("refresh 2"));
+        queue.submit(PriorityWorkQueue.Lane.USER, "a", record("complete a"));
+        queue.submit(PriorityWorkQueue.Lane.USER, "b", record("complete b"));
+
+        // the user's work doesn't wait for the refresh that's running, and goes ahead of the one that isn't
+        waitFor(3);
+        assertEquals("[refresh 1, complete a, complete b]", ran.toString());
+        release.countDown();
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        assertEquals("[refresh 1, complete a, complete b, refresh 2]", ran.toString());
+    }
+
+    @Test
+    public void testSameKeyRunsInOrder() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            final String name = "a" + i;
+            queue.submit(PriorityWorkQueue.Lane.USER, "a", new Runnable() {
+                @Override
+                public void run() {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+                    sleep(2);
+                    concurrent.decrementAndGet();
+                    ran.add(name);
+                }
+            });
+        }
+        waitFor(20);
+        assertEquals(1, maxConcurrent.get());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("a" + i, ran.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            queue.submit(PriorityWorkQueue.Lane.USER, "list" + i, new Runnable() {
+                @Override
+                public void run() {
+                    int now = concurrent.incrementAndGet();
+                    synchronized (maxConcurrent) {
+                        maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+                    }
+                    sleep(5);
+                    concurrent.decrementAndGet();
+                    ran.add("done");
+                }
+            });
+        }
+        waitFor(20);
+        assertEquals(2, maxConcurrent.get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!queue.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(queue.isIdle());
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    private Runnable blockUntil(final CountDownLatch release, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private void waitFor(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
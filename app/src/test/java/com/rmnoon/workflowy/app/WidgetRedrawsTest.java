@@ -0,0 +1,80 @@
+package com.rmnoon.workflowy.app;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rmnoon.workflowy.client.FakeWorkflowy;
+import com.rmnoon.workflowy.client.TreeChangeEvent;
+import com.rmnoon.workflowy.client.TreeChangeListener;
+import com.rmnoon.workflowy.client.TreeDiff;
+import com.rmnoon.workflowy.client.WFClient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for working out which widgets a change means redrawing.
+ */
+public class WidgetRedrawsTest {
+
+    @Test
+    public void testPartsForChanges() throws Exception {
+        FakeWorkflowy server = new FakeWorkflowy("[" +
+                "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1}]}," +
+                "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}" +
+                "]");
+        WFClient client = server.newClient();
+        final List<TreeChangeEvent> events = Lists.newArrayList();
+        client.addChangeListener(new TreeChangeListener() {
+            @Override
+            public void onTreeChanged(List<TreeChangeEvent> changes) {
+                events.addAll(changes);
+            }
+        }, MoreExecutors.directExecutor());
+        client.setGroupCommit(60000, 1000);
+        client.editList(client.getListById("a"), "A edited", null);
+        client.createList(client.getListById("c"), 0, "D", null);
+
+        WidgetRedraws redraws = new WidgetRedraws();
+        for (TreeChangeEvent event : events) {
+            redraws.request(1, event, "a", true); // its name changed
+            redraws.request(2, event, "c", true); // it got a child
+            redraws.request(3, event, TreeDiff.ROOT_LISTS_ID, true); // one of its lists was edited
+            redraws.request(4, event, "b", true); // nothing happened to it
+        }
+        Map<Integer, Set<WidgetRedraws.Part>> taken = redraws.take();
+
+        assertEquals(EnumSet.of(WidgetRedraws.Part.HEADER), taken.get(1));
+        assertEquals(EnumSet.of(WidgetRedraws.Part.ROWS), taken.get(2));
+        assertEquals(EnumSet.of(WidgetRedraws.Part.ROWS), taken.get(3));
+        assertNull(taken.get(4));
+        assertTrue(redraws.take().isEmpty());
+
+        client.logout(); // a reset redraws everything
+        redraws.request(5, events.get(events.size() - 1), "x", false);
+        assertEquals(EnumSet.of(WidgetRedraws.Part.ALL), redraws.take().get(5));
+    }
+
+    @Test
+    public void testPartsAccumulateUntilTaken() {
+        WidgetRedraws redraws = new WidgetRedraws();
+        redraws.request(1, WidgetRedraws.Part.HEADER);
+        redraws.request(1, WidgetRedraws.Part.ROWS);
+        redraws.request(2, WidgetRedraws.Part.ROWS);
+        redraws.forget(2);
+        redraws.request(3, WidgetRedraws.Part.ALL);
+
+        Map<Integer, Set<WidgetRedraws.Part>> taken = redraws.take();
+        assertEquals(EnumSet.of(WidgetRedraws.Part.HEADER, WidgetRedraws.Part.ROWS), taken.get(1));
+        assertEquals(Arrays.asList(1, 3), Arrays.asList(taken.keySet().toArray()));
+        assertEquals(EnumSet.of(WidgetRedraws.Part.ALL), taken.get(3));
+    }
+}
@@ -0,0 +1,165 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.FormBody;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A stand-in for the Workflowy server, for tests that need to control its timing (or that
+ * shouldn't need a real account).  It keeps its own tree of lists, applies whatever's pushed to it
+ * and answers initialization and push / poll requests from that tree.  Other clients' changes can
+ * be queued up with {@link #addRemoteOperations}.
+ */
+public class FakeWorkflowy implements Interceptor {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final Gson gson = new Gson();
+    private final List<WFList> rootLists;
+    private final ListIndex index = new ListIndex();
+    private final List<PushPoll.Operation> remoteOps = Lists.newArrayList(); // for the next push / poll
+    private int transactionId = 100;
+
+    public final AtomicInteger initRequests = new AtomicInteger();
+    public final AtomicInteger pushPollRequests = new AtomicInteger();
+    public volatile long delayMs; // how long every request takes
+    public volatile int pushResponseCode = 200; // what pushes of operations get (anything else refuses them)
+
+    /**
+     * @param rootListsJson the account's lists to start with, as JSON
+     */
+    public FakeWorkflowy(String rootListsJson) {
+        rootLists = Lists.newArrayList(gson.fromJson(rootListsJson, WFList[].class));
+        index.rebuild(rootLists);
+    }
+
+    /**
+     * Returns a client that talks to this server, logged in and loaded.
+     */
+    public WFClient newClient() throws IOException {
+        WFClient client = new WFClient(httpClient(this));
+        client.setSession("{\"sessionId\": \"fake\"}");
+        client.refresh();
+        return client;
+    }
+
+    /**
+     * Returns an HTTP client whose requests go to the given server.
+     */
+    public static OkHttpClient httpClient(FakeWorkflowy server) {
+        return new OkHttpClient.Builder().addInterceptor(server).build();
+    }
+
+    /**
+     * Makes the given operations (as if from another client) happen, to be reported by the next
+     * push / poll.
+     */
+    public synchronized void addRemoteOperations(PushPoll.Operation... ops) {
+        List<PushPoll.Operation> toApply = ImmutableList.copyOf(ops);
+        new OperationApplier(rootLists, index).applyAll(toApply);
+        remoteOps.addAll(toApply);
+        transactionId++;
+    }
+
+    public synchronized WFList getListById(String listId) {
+        return index.get(listId);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (delayMs > 0) {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        String url = request.url().toString();
+        String body;
+        int code = 200;
+        if (url.contains("get_initialization_data")) {
+            initRequests.incrementAndGet();
+            body = initializationData();
+        } else if (url.contains("push_and_poll")) {
+            pushPollRequests.incrementAndGet();
+            FormBody form = (FormBody) request.body();
+            String data = null;
+            for (int i = 0; i < form.size(); i++) {
+                if ("push_poll_data".equals(form.name(i))) data = form.value(i);
+            }
+            PushPoll.Data parsed = gson.fromJson(data, PushPoll.Data.class);
+            List<PushPoll.Operation> pushed = parsed.get(0).operations;
+            if (pushResponseCode != 200 && pushed != null && !pushed.isEmpty()) {
+                code = pushResponseCode;
+                body = "{}";
+            } else {
+                body = pushAndPoll(parsed);
+            }
+        } else {
+            throw new IOException("Not faked: " + url);
+        }
+
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(code == 200 ? "OK" : "Refused")
+                .body(ResponseBody.create(JSON, body))
+                .build();
+    }
+
+    private synchronized String initializationData() {
+        Initialization.Response res = new Initialization.Response();
+        res.projectTreeData = new Initialization.ProjectTreeData();
+        res.projectTreeData.clientId = "fake-client";
+        res.projectTreeData.mainProjectTreeInfo = new Initialization.ProjectTreeInfo();
+        res.projectTreeData.mainProjectTreeInfo.initialMostRecentOperationTransactionId = Integer.toString(transactionId);
+        res.projectTreeData.mainProjectTreeInfo.dateJoinedTimestampInSeconds = 1;
+        res.projectTreeData.mainProjectTreeInfo.rootProjectChildren = rootLists;
+        res.settings = new Initialization.Settings();
+        res.settings.username = "fake@example.com";
+        res.globals = ImmutableList.<List<Object>>of(ImmutableList.<Object>of("USER_ID", "1"));
+        return gson.toJson(res);
+    }
+
+    private synchronized String pushAndPoll(PushPoll.Data data) {
+        List<Object> concurrent = Lists.newArrayList();
+        if (!remoteOps.isEmpty()) {
+            PushPoll.RemoteTransaction remote = new PushPoll.RemoteTransaction();
+            remote.ops = ImmutableList.copyOf(remoteOps);
+            concurrent.add(gson.toJson(remote));
+            remoteOps.clear();
+        }
+
+        PushPoll.ResponseResult result = new PushPoll.ResponseResult();
+        List<PushPoll.Operation> pushed = data.get(0).operations;
+        if (pushed != null && !pushed.isEmpty()) {
+            new OperationApplier(rootLists, index).applyAll(pushed);
+            transactionId++;
+            PushPoll.RemoteTransaction serverRun = new PushPoll.RemoteTransaction();
+            serverRun.ops = pushed;
+            result.server_run_operation_transaction_json = gson.toJson(serverRun);
+        }
+        result.concurrent_remote_operation_transactions = concurrent;
+        result.new_most_recent_operation_transaction_id = Integer.toString(transactionId);
+
+        PushPoll.Response res = new PushPoll.Response();
+        res.results = ImmutableList.of(result);
+        return gson.toJson(res);
+    }
+}
@@ -0,0 +1,87 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for reading lists lazily from a memory mapped snapshot.
+ */
+public class MappedTreeSnapshotTest {
+
+    private File file;
+    private List<WFList> tree;
+    private MappedTreeSnapshot mapped;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("snapshot", null);
+        tree = TreeSnapshotTest.buildTree();
+        Files.write(TreeSnapshotTest.write(tree), file);
+        mapped = new MappedTreeSnapshot(file);
+    }
+
+    @After
+    public void after() throws IOException {
+        mapped.close();
+        file.delete();
+    }
+
+    @Test
+    public void testMatchesTree() {
+        assertEquals(tree, mapped.getRootLists());
+        assertEquals(tree.get(0).getName(), mapped.getRootLists().get(0).getName());
+    }
+
+    @Test
+    public void testDecodesLazily() {
+        WFList d = mapped.getListById("d");
+        assertEquals("d note", d.getDescription());
+        assertEquals(1, mapped.getDecodedCount());
+
+        assertEquals(2, mapped.getRootLists().size());
+        assertEquals(1, mapped.getDecodedCount());
+
+        WFList b = mapped.getListById("b");
+        assertTrue(b.isComplete());
+        assertEquals(1, b.getChildren().size()); // knowing how many children there are doesn't decode them
+        assertEquals(2, mapped.getDecodedCount());
+        assertSame(b, mapped.getListById("b"));
+    }
+
+    @Test
+    public void testLookups() {
+        for (String id : ImmutableList.of("a", "b", "c", "d", "e")) {
+            assertEquals(id, mapped.getListById(id).getId());
+        }
+        assertNull(mapped.getListById("nonexistent"));
+        assertNull(mapped.getListById(""));
+        assertNull(mapped.getListById(null));
+
+        WFList a = mapped.getRootLists().get(0);
+        WFList c = mapped.getListById("c");
+        assertSame(a.getChild(0), mapped.getParentList(c));
+        assertSame(a, mapped.getParentList(mapped.getListById("d")));
+        assertNull(mapped.getParentList(a));
+        assertNull(mapped.getParentList(mapped.getListById("e")));
+        assertEquals(ImmutableList.of(a, a.getChild(0), c), mapped.getAncestryPath(c));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASnapshot() throws IOException {
+        Files.write("not a snapshot at all".getBytes("UTF-8"), file);
+        new MappedTreeSnapshot(file);
+    }
+}
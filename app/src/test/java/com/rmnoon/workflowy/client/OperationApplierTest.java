@@ -0,0 +1,271 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for applying remote operations to a local tree.  Unlike {@link WFClientTest} these don't
+ * need a network connection.
+ *
+ * The tree every test starts with is:
+ * <pre>
+ *   a
+ *     b
+ *       c
+ *     d
+ *   e
+ * </pre>
+ */
+public class OperationApplierTest {
+
+    private static final String TREE_JSON = "[" +
+            "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [" +
+                "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1, \"ch\": [" +
+                    "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}" +
+                "]}," +
+                "{\"id\": \"d\", \"nm\": \"D\", \"no\": \"d note\", \"lm\": 1}" +
+            "]}," +
+            "{\"id\": \"e\", \"nm\": \"E\", \"lm\": 1, \"cp\": 1}" +
+            "]";
+
+    private Gson gson;
+    private List<WFList> rootLists;
+    private ListIndex index;
+    private OperationApplier applier;
+    private WFList a, b, c, d, e;
+
+    @Before
+    public void before() {
+        gson = new Gson();
+        rootLists = gson.fromJson(TREE_JSON, new TypeToken<List<WFList>>() {}.getType());
+        index = new ListIndex();
+        index.rebuild(rootLists);
+        applier = new OperationApplier(rootLists, index);
+        a = index.get("a");
+        b = index.get("b");
+        c = index.get("c");
+        d = index.get("d");
+        e = index.get("e");
+        rootLists.hashCode(); // so any hashes that aren't invalidated by a change will be wrong
+    }
+
+    @Test
+    public void testCreate() {
+        assertTrue(applier.apply(PushPoll.buildCreateOp("x", "a", 1, 10)));
+        WFList x = index.get("x");
+        assertSame(x, a.getChild(1));
+        assertSame(d, a.getChild(2));
+        assertSame(a, index.getParent("x"));
+        assertEquals(10, x.lm);
+        assertNull(x.getName());
+
+        // root lists, with out of range priorities clamped
+        assertTrue(applier.apply(PushPoll.buildCreateOp("y", "None", 99, 11)));
+        assertSame(index.get("y"), rootLists.get(2));
+        assertTrue(index.isRoot("y"));
+        assertTrue(applier.apply(PushPoll.buildCreateOp("z", "None", -1, 12)));
+        assertSame(index.get("z"), rootLists.get(0));
+
+        // into a list with no children yet
+        assertTrue(applier.apply(PushPoll.buildCreateOp("w", "c", 0, 13)));
+        assertSame(index.get("w"), c.getChild(0));
+
+        assertTreeMatchesIndex();
+    }
+
+    @Test
+    public void testCreateExistingIsNoOp() {
+        assertTrue(applier.apply(PushPoll.buildCreateOp("c", "None", 0, 10)));
+        assertSame(c, b.getChild(0));
+        assertEquals(2, rootLists.size());
+        assertEquals(1, c.lm);
+    }
+
+    @Test
+    public void testCreateWithMissingParent() {
+        assertFalse(applier.apply(PushPoll.buildCreateOp("x", "nonexistent", 0, 10)));
+        assertNull(index.get("x"));
+    }
+
+    @Test
+    public void testEdit() {
+        assertTrue(applier.apply(PushPoll.buildEditOp("b", "new B", null, 1L, 10)));
+        assertSame(b, index.get("b"));
+        assertEquals("new B", b.getName());
+        assertNull(b.getDescription());
+        assertEquals(10, b.lm);
+
+        assertTrue(applier.apply(PushPoll.buildEditOp("d", null, "new d note", 1L, 11)));
+        assertEquals("D", d.getName());
+        assertEquals("new d note", d.getDescription());
+
+        // an empty description clears it
+        assertTrue(applier.apply(PushPoll.buildEditOp("d", null, "", 11L, 12)));
+        assertNull(d.getDescription());
+
+        assertFalse(applier.apply(PushPoll.buildEditOp("nonexistent", "x", null, 1L, 13)));
+    }
+
+    @Test
+    public void testCompleteAndUncomplete() {
+        assertTrue(applier.apply(PushPoll.buildCompleteOp("c", true, null, 1L, 10)));
+        assertTrue(c.isComplete());
+        assertEquals(Long.valueOf(10), c.cp);
+        assertEquals(10, c.lm);
+
+        assertTrue(applier.apply(PushPoll.buildCompleteOp("e", false, 1L, 1L, 11)));
+        assertFalse(e.isComplete());
+        assertEquals(11, e.lm);
+
+        assertFalse(applier.apply(PushPoll.buildCompleteOp("nonexistent", true, null, 1L, 12)));
+        assertFalse(applier.apply(PushPoll.buildCompleteOp("nonexistent", false, 1L, 1L, 12)));
+    }
+
+    @Test
+    public void testDelete() {
+        assertTrue(applier.apply(PushPoll.buildDeleteOp("b", 1, 10)));
+        assertEquals(ImmutableList.of(d), a.getChildren());
+        assertNull("descendants are unindexed too", index.get("c"));
+        assertNull(index.get("b"));
+
+        // deleting the last child leaves no children (like a fresh load)
+        assertTrue(applier.apply(PushPoll.buildDeleteOp("d", 1, 11)));
+        assertNull(a.getChildren());
+
+        assertTrue(applier.apply(PushPoll.buildDeleteOp("e", 1, 12)));
+        assertEquals(ImmutableList.of(a), rootLists);
+
+        assertTrue("deleting something that's already gone is fine", applier.apply(PushPoll.buildDeleteOp("e", 1, 13)));
+        assertTreeMatchesIndex();
+    }
+
+    @Test
+    public void testMove() {
+        // to another parent
+        assertTrue(applier.apply(buildMoveOp("c", "d", 0, 10)));
+        assertSame(c, d.getChild(0));
+        assertNull(b.getChildren());
+        assertSame(d, index.getParent("c"));
+        assertEquals(10, c.lm);
+
+        // to the root, along with its children
+        assertTrue(applier.apply(buildMoveOp("d", "None", 1, 11)));
+        assertEquals(ImmutableList.of(a, d, e), rootLists);
+        assertTrue(index.isRoot("d"));
+        assertSame(d, index.getParent("c"));
+
+        // within the same parent
+        assertTrue(applier.apply(buildMoveOp("a", "None", 2, 12)));
+        assertEquals(ImmutableList.of(d, e, a), rootLists);
+
+        assertTreeMatchesIndex();
+    }
+
+    @Test
+    public void testBadMoves() {
+        assertFalse("can't move into itself", applier.apply(buildMoveOp("a", "a", 0, 10)));
+        assertFalse("can't move into a descendant", applier.apply(buildMoveOp("a", "c", 0, 10)));
+        assertFalse(applier.apply(buildMoveOp("nonexistent", "a", 0, 10)));
+        assertFalse(applier.apply(buildMoveOp("c", "nonexistent", 0, 10)));
+        assertSame(c, b.getChild(0));
+        assertTreeMatchesIndex();
+    }
+
+    @Test
+    public void testUnknownOperation() {
+        PushPoll.Operation op = PushPoll.buildEditOp("a", "x", null, 1L, 10).setType("share");
+        assertFalse(applier.apply(op));
+        assertFalse(applier.apply(null));
+        assertFalse(applier.applyAll(ImmutableList.of(PushPoll.buildEditOp("a", "x", null, 1L, 10), op)));
+    }
+
+    @Test
+    public void testParseTransactions() {
+        String txn = "{\"ops\": [" +
+                "{\"type\": \"create\", \"client_timestamp\": 10, \"data\": {\"projectid\": \"x\", \"parentid\": \"e\", \"priority\": 0}}," +
+                "{\"type\": \"edit\", \"client_timestamp\": 10, \"data\": {\"projectid\": \"x\", \"name\": \"X\"}}" +
+                "]}";
+        String otherTxn = "{\"ops\": [{\"type\": \"move\", \"client_timestamp\": 11, \"data\": {\"projectid\": \"x\", \"parentid\": \"a\", \"priority\": 0}}]}";
+
+        // transactions can come back as strings or as already-parsed json
+        List<Object> transactions = ImmutableList.<Object>of(txn, gson.fromJson(otherTxn, Object.class));
+        List<PushPoll.Operation> ops = OperationApplier.parseTransactions(gson, transactions);
+        assertEquals(3, ops.size());
+        assertEquals("create", ops.get(0).type);
+        assertEquals("X", ops.get(1).data.name);
+        assertEquals(11, ops.get(2).client_timestamp);
+
+        assertTrue(applier.applyAll(ops));
+        assertEquals("X", a.getChild(0).getName());
+        assertNull(e.getChildren());
+        assertTreeMatchesIndex();
+
+        assertTrue(OperationApplier.parseTransaction(gson, null).isEmpty());
+        assertTrue(OperationApplier.parseTransactions(gson, null).isEmpty());
+    }
+
+    @Test
+    public void testObjectsAreReused() {
+        List<WFList> before = ImmutableList.of(a, b, c, d, e);
+        applier.applyAll(ImmutableList.of(
+                PushPoll.buildEditOp("a", "x", "y", 1L, 10),
+                PushPoll.buildCompleteOp("b", true, null, 1L, 10),
+                buildMoveOp("c", "e", 0, 10),
+                buildMoveOp("d", "None", 0, 10)
+        ));
+        for (WFList l : before) {
+            assertSame(l, index.get(l.getId()));
+        }
+        assertSame(c, e.getChild(0));
+        assertSame(d, rootLists.get(0));
+    }
+
+    static PushPoll.Operation buildMoveOp(String listId, String parentId, int priority, long time) {
+        return new PushPoll.Operation()
+                .setType("move")
+                .setData(new PushPoll.OperationData()
+                        .setProjectid(listId)
+                        .setParentid(parentId)
+                        .setPriority(priority)
+                )
+                .setClient_timestamp(time)
+                .setUndo_data(new PushPoll.OperationUndoData());
+    }
+
+    private void assertTreeMatchesIndex() {
+        final ListIndex fromTree = new ListIndex();
+        fromTree.rebuild(rootLists);
+        assertEquals(fromTree.size(), index.size());
+        for (WFList l : rootLists) {
+            assertTrue(index.isRoot(l.getId()));
+        }
+        Utils.bfsLists(rootLists, new Function<WFList, Boolean>() {
+            @Override
+            public Boolean apply(WFList input) {
+                assertSame(input, index.get(input.getId()));
+                assertSame(fromTree.getParent(input.getId()), index.getParent(input.getId()));
+                return null;
+            }
+        });
+
+        // the cached subtree hashes should match those of a fresh copy of the tree
+        List<WFList> copy = gson.fromJson(gson.toJson(rootLists), new TypeToken<List<WFList>>() {}.getType());
+        assertEquals(copy.size(), rootLists.size());
+        for (int i = 0; i < copy.size(); i++) {
+            assertEquals(copy.get(i).getSubtreeHash(), rootLists.get(i).getSubtreeHash());
+        }
+    }
+}
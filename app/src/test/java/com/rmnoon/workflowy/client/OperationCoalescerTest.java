@@ -0,0 +1,106 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for coalescing pending operations before they're pushed.
+ */
+public class OperationCoalescerTest {
+
+    @Test
+    public void testEditsAreFolded() {
+        PushPoll.Operation first = PushPoll.buildEditOp("a", "A1", null, 1L, 10);
+        List<PushPoll.Operation> result = OperationCoalescer.coalesce(ImmutableList.of(
+                first,
+                PushPoll.buildEditOp("b", "B", null, 1L, 11),
+                PushPoll.buildEditOp("a", null, "a note", 10L, 12),
+                PushPoll.buildEditOp("a", "A2", null, 12L, 13)
+        ));
+
+        assertEquals(2, result.size());
+        PushPoll.Operation merged = result.get(0);
+        assertEquals("edit", merged.type);
+        assertEquals("A2", merged.data.name);
+        assertEquals("a note", merged.data.description);
+        assertEquals(13, merged.client_timestamp);
+        assertSame("undoing goes back to before the first edit", first.undo_data, merged.undo_data);
+        assertEquals("A1", first.data.name); // the originals aren't touched
+        assertEquals("b", result.get(1).data.projectid);
+    }
+
+    @Test
+    public void testCreateFollowedByEdits() {
+        List<PushPoll.Operation> result = OperationCoalescer.coalesce(ImmutableList.of(
+                PushPoll.buildCreateOp("x", "None", 0, 10),
+                PushPoll.buildEditOp("x", "X", "", 10L, 10),
+                PushPoll.buildEditOp("x", "Xy", null, 10L, 11),
+                PushPoll.buildEditOp("x", "Xyz", null, 11L, 12)
+        ));
+
+        assertEquals(2, result.size());
+        assertEquals("create", result.get(0).type);
+        assertEquals("edit", result.get(1).type);
+        assertEquals("Xyz", result.get(1).data.name);
+        assertEquals("", result.get(1).data.description);
+    }
+
+    @Test
+    public void testCompletionsCancelOut() {
+        List<PushPoll.Operation> result = OperationCoalescer.coalesce(ImmutableList.of(
+                PushPoll.buildCompleteOp("a", true, null, 1L, 10),
+                PushPoll.buildEditOp("a", "A", null, 10L, 11),
+                PushPoll.buildCompleteOp("a", false, 10L, 11L, 12),
+                PushPoll.buildCompleteOp("b", true, null, 1L, 13),
+                PushPoll.buildCompleteOp("b", true, null, 13L, 14)
+        ));
+
+        assertEquals(2, result.size());
+        assertEquals("edit", result.get(0).type);
+        assertEquals("complete", result.get(1).type);
+        assertEquals(14, result.get(1).client_timestamp);
+    }
+
+    @Test
+    public void testDeletesDropEarlierOps() {
+        List<PushPoll.Operation> result = OperationCoalescer.coalesce(ImmutableList.of(
+                PushPoll.buildEditOp("a", "A", null, 1L, 10),
+                PushPoll.buildCompleteOp("a", true, null, 10L, 11),
+                PushPoll.buildCreateOp("x", "a", 0, 12), // created inside a list that's deleted
+                PushPoll.buildEditOp("x", "X", "", 12L, 12),
+                PushPoll.buildCreateOp("y", "None", 0, 13), // created and then deleted
+                PushPoll.buildCreateOp("z", "y", 0, 14),
+                PushPoll.buildEditOp("b", "B", null, 1L, 15),
+                PushPoll.buildDeleteOp("y", 14L, 16),
+                PushPoll.buildDeleteOp("a", 11L, 17),
+                PushPoll.buildDeleteOp("a", 11L, 18)
+        ));
+
+        assertEquals(2, result.size());
+        assertEquals("b", result.get(0).data.projectid);
+        assertEquals("delete", result.get(1).type);
+        assertEquals("a", result.get(1).data.projectid);
+        assertEquals(17, result.get(1).client_timestamp);
+    }
+
+    @Test
+    public void testUnknownOpsPassThrough() {
+        PushPoll.Operation unknown = new PushPoll.Operation().setType("share");
+        List<PushPoll.Operation> result = OperationCoalescer.coalesce(ImmutableList.of(
+                unknown,
+                PushPoll.buildEditOp("a", "A", null, 1L, 10)
+        ));
+        assertEquals(2, result.size());
+        assertSame(unknown, result.get(0));
+        assertNull(result.get(0).data);
+        assertTrue(OperationCoalescer.coalesce(ImmutableList.<PushPoll.Operation>of()).isEmpty());
+    }
+}
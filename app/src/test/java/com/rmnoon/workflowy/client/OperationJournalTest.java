@@ -0,0 +1,142 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the journal of unconfirmed operations.
+ */
+public class OperationJournalTest {
+
+    private File file;
+    private OperationJournal journal;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("journal", null);
+        journal = new OperationJournal(file);
+    }
+
+    @After
+    public void after() throws IOException {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void testAppendConfirmAndReopen() throws IOException {
+        long first = journal.append(ImmutableList.of(PushPoll.buildEditOp("a", "A", null, 1L, 10)));
+        long second = journal.append(ImmutableList.of(
+                PushPoll.buildCreateOp("b", "a", 0, 11),
+                PushPoll.buildEditOp("b", "B", "", 11L, 11)
+        ));
+        journal.append(ImmutableList.of(PushPoll.buildCompleteOp("a", true, null, 10L, 12)));
+        assertEquals(3, journal.getPending().size());
+
+        journal.confirm(first);
+        List<List<PushPoll.Operation>> pending = journal.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(second, journal.getLastSeq() - 1);
+
+        journal = reopen();
+        pending = journal.getPending();
+        assertEquals(2, pending.size());
+        assertEquals("create", pending.get(0).get(0).type);
+        assertEquals("B", pending.get(0).get(1).data.name);
+        assertEquals("complete", pending.get(1).get(0).type);
+        assertEquals(12, pending.get(1).get(0).client_timestamp);
+
+        // sequence numbers carry on where they left off
+        long fourth = journal.append(ImmutableList.of(PushPoll.buildDeleteOp("a", 12L, 13)));
+        assertEquals(4, fourth);
+    }
+
+    @Test
+    public void testConfirmingEverythingTruncates() throws IOException {
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("a", "A", null, 1L, 10)));
+        long last = journal.append(ImmutableList.of(PushPoll.buildEditOp("a", "AA", null, 10L, 11)));
+        journal.sync();
+        assertTrue(journal.size() > 0);
+
+        journal.confirm(last);
+        assertEquals(0, journal.size());
+        assertTrue(reopen().getPending().isEmpty());
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws IOException {
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("a", "A", null, 1L, 10)));
+        journal.sync();
+        long goodSize = journal.size();
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("b", "B", null, 1L, 11)));
+        journal.close();
+
+        // lose the end of the second record, like the process died mid-write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        journal = new OperationJournal(file);
+        assertEquals(1, journal.getPending().size());
+        assertEquals(goodSize, journal.size());
+
+        // and we can carry on appending after it
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("c", "C", null, 1L, 12)));
+        assertEquals(2, reopen().getPending().size());
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws IOException {
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("a", "A", null, 1L, 10)));
+        journal.sync();
+        long goodSize = journal.size();
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("b", "B", null, 1L, 11)));
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(goodSize + 12); // somewhere in the second record's payload
+        raf.write('x');
+        raf.close();
+
+        journal = new OperationJournal(file);
+        assertEquals(1, journal.getPending().size());
+        assertEquals("a", journal.getPending().get(0).get(0).data.projectid);
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 1000; i++) longName.append("x");
+
+        long seq = 0;
+        while (journal.size() <= OperationJournal.COMPACT_THRESHOLD_BYTES) {
+            seq = journal.append(ImmutableList.of(PushPoll.buildEditOp("a", longName.toString(), null, 1L, 10)));
+        }
+        journal.append(ImmutableList.of(PushPoll.buildEditOp("b", "B", null, 1L, 11)));
+
+        journal.confirm(seq);
+        assertTrue(journal.size() < 1000);
+        assertEquals(1, journal.getPending().size());
+
+        journal = reopen();
+        assertEquals(1, journal.getPending().size());
+        assertEquals("B", journal.getPending().get(0).get(0).data.name);
+    }
+
+    private OperationJournal reopen() throws IOException {
+        journal.close();
+        journal = new OperationJournal(file);
+        return journal;
+    }
+}
@@ -0,0 +1,97 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for the persistent hash map behind the list index.
+ */
+public class PersistentHashMapTest {
+
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(42);
+        Map<Integer, Integer> expected = Maps.newHashMap();
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.empty();
+        Object edit = new Object();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(5000) * (random.nextBoolean() ? 1 : 65537); // some deep tries too
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key, i % 2 == 0 ? edit : null);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i, i % 2 == 0 ? edit : null);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertNull(map.get(-1));
+    }
+
+    @Test
+    public void testCollisions() {
+        // "Aa" and "BB" have the same hash code
+        PersistentHashMap<String, String> map = PersistentHashMap.<String, String>empty()
+                .plus("Aa", "1", null)
+                .plus("BB", "2", null)
+                .plus("AaAa", "3", null)
+                .plus("BBBB", "4", null)
+                .plus("AaBB", "5", null);
+        assertEquals(5, map.size());
+        assertEquals("2", map.get("BB"));
+        assertEquals("5", map.get("AaBB"));
+
+        map = map.minus("Aa", null).plus("BB", "6", null);
+        assertEquals(4, map.size());
+        assertNull(map.get("Aa"));
+        assertEquals("6", map.get("BB"));
+
+        map = map.minus("BB", null).minus("AaAa", null).minus("BBBB", null).minus("AaBB", null);
+        assertEquals(0, map.size());
+        assertNull(map.get("BB"));
+    }
+
+    @Test
+    public void testOldVersionsUnchanged() {
+        Object edit = new Object();
+        PersistentHashMap<String, String> map = PersistentHashMap.empty();
+        for (int i = 0; i < 100; i++) {
+            map = map.plus("key" + i, "value" + i, edit);
+        }
+        PersistentHashMap<String, String> before = map;
+        edit = new Object(); // as a snapshot would
+
+        for (int i = 0; i < 100; i += 2) {
+            map = map.minus("key" + i, edit);
+        }
+        map = map.plus("key1", "changed", edit).plus("new", "new", edit);
+
+        assertEquals(100, before.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, before.get("key" + i));
+        }
+        assertNull(before.get("new"));
+        assertEquals(51, map.size());
+        assertEquals("changed", map.get("key1"));
+        assertNull(map.get("key0"));
+    }
+
+    @Test
+    public void testNoOps() {
+        PersistentHashMap<String, String> map = PersistentHashMap.<String, String>empty().plus("a", "1", null);
+        String one = map.get("a");
+        assertSame(map, map.plus("a", one, null));
+        assertSame(map, map.minus("b", null));
+    }
+}
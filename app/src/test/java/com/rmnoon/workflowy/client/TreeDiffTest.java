@@ -0,0 +1,126 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for diffing two versions of a tree.  They change a copy of the tree the tests start with
+ * (the same as {@link OperationApplierTest}'s) with an {@link OperationApplier}:
+ * <pre>
+ *   a
+ *     b
+ *       c
+ *     d
+ *   e
+ * </pre>
+ */
+public class TreeDiffTest {
+
+    private static final String TREE_JSON = "[" +
+            "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [" +
+                "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1, \"ch\": [" +
+                    "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}" +
+                "]}," +
+                "{\"id\": \"d\", \"nm\": \"D\", \"no\": \"d note\", \"lm\": 1}" +
+            "]}," +
+            "{\"id\": \"e\", \"nm\": \"E\", \"lm\": 1, \"cp\": 1}" +
+            "]";
+
+    private List<WFList> before;
+    private List<WFList> after;
+    private OperationApplier applier;
+
+    @Before
+    public void before() {
+        Gson gson = new Gson();
+        before = gson.fromJson(TREE_JSON, new TypeToken<List<WFList>>() {}.getType());
+        after = gson.fromJson(TREE_JSON, new TypeToken<List<WFList>>() {}.getType());
+        ListIndex index = new ListIndex();
+        index.rebuild(after);
+        applier = new OperationApplier(after, index);
+    }
+
+    @Test
+    public void testNoChanges() {
+        TreeDiff diff = TreeDiff.compute(before, after);
+        assertTrue(diff.isEmpty());
+        assertTrue(diff.getChangedParents().isEmpty());
+        assertTrue(TreeDiff.compute(null, null).isEmpty());
+    }
+
+    @Test
+    public void testEdits() {
+        apply(PushPoll.buildEditOp("c", "C edited", null, 1L, 2));
+        apply(PushPoll.buildCompleteOp("e", false, 1L, 1L, 2));
+        TreeDiff diff = TreeDiff.compute(before, after);
+        assertEquals(ImmutableSet.of("c", "e"), diff.getEdited());
+        assertEquals(ImmutableSet.of("b", TreeDiff.ROOT_LISTS_ID), diff.getChangedParents());
+        assertTrue(diff.affects("b"));
+        assertTrue(diff.affects("c"));
+        assertFalse(diff.affects("a")); // only its grandchild changed
+        assertFalse(diff.affects("d"));
+    }
+
+    @Test
+    public void testAddsAndRemoves() {
+        apply(PushPoll.buildCreateOp("f", "d", 0, 2));
+        apply(PushPoll.buildCreateOp("g", "f", 0, 2));
+        apply(PushPoll.buildDeleteOp("b", 1, 2));
+        TreeDiff diff = TreeDiff.compute(before, after);
+        assertEquals(ImmutableSet.of("f", "g"), diff.getAdded());
+        assertEquals(ImmutableSet.of("b", "c"), diff.getRemoved());
+        assertTrue(diff.getMoved().isEmpty());
+        assertTrue(diff.getEdited().isEmpty());
+        assertEquals(ImmutableSet.of("a", "d"), diff.getChangedParents());
+        assertTrue(diff.affects("c"));
+        assertFalse(diff.affects("e"));
+    }
+
+    @Test
+    public void testMoves() {
+        apply(OperationApplierTest.buildMoveOp("c", "e", 0, 2)); // to another parent
+        apply(OperationApplierTest.buildMoveOp("d", "a", 0, 2)); // around among its siblings
+        TreeDiff diff = TreeDiff.compute(before, after);
+        assertEquals(ImmutableSet.of("c", "d"), diff.getMoved());
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertEquals(ImmutableSet.of("a", "b", "e"), diff.getChangedParents());
+    }
+
+    @Test
+    public void testMovesOutOfRemovedAndIntoAdded() {
+        apply(PushPoll.buildCreateOp("f", "None", 0, 2));
+        apply(OperationApplierTest.buildMoveOp("c", "f", 0, 2));
+        apply(PushPoll.buildEditOp("c", "C edited", null, 1L, 2));
+        apply(PushPoll.buildDeleteOp("a", 1, 2));
+        TreeDiff diff = TreeDiff.compute(before, after);
+        assertEquals(ImmutableSet.of("f"), diff.getAdded());
+        assertEquals(ImmutableSet.of("a", "b", "d"), diff.getRemoved());
+        assertEquals(ImmutableSet.of("c"), diff.getMoved());
+        assertEquals(ImmutableSet.of("c"), diff.getEdited());
+    }
+
+    @Test
+    public void testLongestIncreasing() {
+        assertArrayEquals(new boolean[0], TreeDiff.longestIncreasing(new int[0]));
+        assertArrayEquals(new boolean[] {true, true, true}, TreeDiff.longestIncreasing(new int[] {0, 1, 2}));
+        // moving the last of five to the front only moves that one
+        assertArrayEquals(new boolean[] {false, true, true, true, true}, TreeDiff.longestIncreasing(new int[] {4, 0, 1, 2, 3}));
+        assertArrayEquals(new boolean[] {true, false, true, true}, TreeDiff.longestIncreasing(new int[] {0, 2, 1, 3}));
+    }
+
+    private void apply(PushPoll.Operation op) {
+        assertTrue(applier.apply(op));
+    }
+}
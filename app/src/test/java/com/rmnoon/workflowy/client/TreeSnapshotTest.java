@@ -0,0 +1,86 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for writing and reading binary tree snapshots.
+ */
+public class TreeSnapshotTest {
+
+    static final String TREE_JSON = "[" +
+            "{\"id\": \"a\", \"nm\": \"A \u00e9\u4e2d\ud83d\ude00\", \"lm\": 1, \"ch\": [" +
+                "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 2, \"cp\": 5, \"ch\": [" +
+                    "{\"id\": \"c\", \"nm\": \"\", \"lm\": 3}" +
+                "]}," +
+                "{\"id\": \"d\", \"nm\": \"D\", \"no\": \"d note\", \"lm\": 4}" +
+            "]}," +
+            "{\"id\": \"e\", \"lm\": 0, \"cp\": 0}" +
+            "]";
+
+    static List<WFList> buildTree() {
+        return new Gson().fromJson(TREE_JSON, new TypeToken<List<WFList>>() {}.getType());
+    }
+
+    static byte[] write(List<WFList> rootLists) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeSnapshot.write(rootLists, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<WFList> tree = buildTree();
+        List<WFList> read = TreeSnapshot.read(new ByteArrayInputStream(write(tree)));
+        assertEquals(tree, read);
+
+        WFList e = read.get(1);
+        assertNull(e.getName());
+        assertNull(e.getChildren());
+        assertTrue(e.isComplete());
+        assertEquals("", read.get(0).getChild(0).getChild(0).getName());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertTrue(TreeSnapshot.read(new ByteArrayInputStream(write(null))).isEmpty());
+        assertTrue(TreeSnapshot.read(new ByteArrayInputStream(write(Collections.<WFList>emptyList()))).isEmpty());
+    }
+
+    @Test
+    public void testBadSnapshots() throws IOException {
+        byte[] good = write(buildTree());
+
+        byte[] truncated = Arrays.copyOf(good, good.length - 3);
+        assertUnreadable(truncated);
+
+        byte[] badVersion = good.clone();
+        badVersion[7] = 99;
+        assertUnreadable(badVersion);
+
+        assertUnreadable("[{\"id\": \"a\"}]".getBytes("UTF-8"));
+        assertUnreadable(new byte[0]);
+    }
+
+    private static void assertUnreadable(byte[] snapshot) {
+        try {
+            TreeSnapshot.read(new ByteArrayInputStream(snapshot));
+            fail("shouldn't be readable");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the change events a client hands its listeners, against a {@link FakeWorkflowy}.
+ */
+public class WFClientChangeListenerTest {
+
+    private FakeWorkflowy server;
+    private WFClient client;
+    private final List<List<TreeChangeEvent>> calls = Lists.newArrayList();
+    private final TreeChangeListener listener = new TreeChangeListener() {
+        @Override
+        public void onTreeChanged(List<TreeChangeEvent> events) {
+            calls.add(events);
+        }
+    };
+
+    @Before
+    public void before() throws Exception {
+        server = new FakeWorkflowy("[" +
+                "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [" +
+                    "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1}" +
+                "]}," +
+                "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}" +
+                "]");
+        client = server.newClient();
+    }
+
+    @Test
+    public void testEventsFromEachSource() throws Exception {
+        long version = client.getTreeVersion();
+        client.addChangeListener(listener, MoreExecutors.directExecutor());
+
+        WFList created = client.createList(client.getListById("a"), 0, "new", null);
+        TreeChangeEvent local = onlyEvent();
+        assertEquals(TreeChangeEvent.Type.LOCAL, local.getType());
+        assertEquals(version + 1, local.getVersion());
+        assertTrue(local.getChanges().getAdded().contains(created.getId()));
+        assertTrue(local.affects("a"));
+        assertFalse(local.affects("c"));
+        assertTrue("the server echoing our own change back isn't another change", calls.isEmpty());
+
+        server.addRemoteOperations(PushPoll.buildEditOp("c", "C edited", null, 1L, 2));
+        client.sync();
+        TreeChangeEvent remote = onlyEvent();
+        assertEquals(TreeChangeEvent.Type.REMOTE, remote.getType());
+        assertEquals(version + 2, remote.getVersion());
+        assertEquals("[c]", remote.getChanges().getEdited().toString());
+        assertTrue(remote.affects(TreeDiff.ROOT_LISTS_ID));
+
+        server.addRemoteOperations(PushPoll.buildDeleteOp("b", 1L, 3));
+        client.refresh();
+        TreeChangeEvent load = onlyEvent();
+        assertEquals(TreeChangeEvent.Type.LOAD, load.getType());
+        assertEquals(version + 3, load.getVersion());
+        assertEquals("[b]", load.getChanges().getRemoved().toString());
+
+        client.refresh(); // nothing's changed
+        assertTrue(calls.isEmpty());
+        assertEquals(version + 3, client.getTreeVersion());
+
+        client.logout();
+        TreeChangeEvent reset = onlyEvent();
+        assertEquals(TreeChangeEvent.Type.RESET, reset.getType());
+        assertNull(reset.getChanges());
+        assertTrue(reset.affects("anything"));
+    }
+
+    @Test
+    public void testEventsAreBatchedUntilDelivered() throws Exception {
+        final Queue<Runnable> tasks = Queues.newArrayDeque();
+        client.addChangeListener(listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        client.setGroupCommit(60000, 1000);
+
+        client.editList(client.getListById("a"), "A1", null);
+        client.editList(client.getListById("b"), "B1", null);
+        client.completeList(client.getListById("c"), true);
+        assertEquals("one delivery for all of them", 1, tasks.size());
+        tasks.remove().run();
+
+        assertEquals(1, calls.size());
+        List<TreeChangeEvent> events = calls.remove(0);
+        assertEquals(3, events.size());
+        for (int i = 1; i < events.size(); i++) {
+            assertEquals(events.get(i - 1).getVersion() + 1, events.get(i).getVersion());
+        }
+        assertEquals(client.getTreeVersion(), events.get(2).getVersion());
+        assertEquals("[b]", events.get(1).getChanges().getEdited().toString());
+
+        client.removeChangeListener(listener);
+        client.deleteList(client.getListById("c"));
+        assertTrue(tasks.isEmpty());
+    }
+
+    private TreeChangeEvent onlyEvent() {
+        assertEquals(1, calls.size());
+        List<TreeChangeEvent> events = calls.remove(0);
+        assertEquals(1, events.size());
+        return events.get(0);
+    }
+}
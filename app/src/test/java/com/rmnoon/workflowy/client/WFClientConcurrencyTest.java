@@ -0,0 +1,224 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for using the client from several threads at once, against a {@link FakeWorkflowy} (so
+ * they don't need a test account).
+ */
+public class WFClientConcurrencyTest {
+
+    private static final long SLOW_REQUEST_MS = 300;
+
+    private FakeWorkflowy server;
+    private WFClient client;
+
+    @Before
+    public void before() throws Exception {
+        server = new FakeWorkflowy("[" +
+                "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [" +
+                    "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1, \"ch\": [" +
+                        "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}" +
+                    "]}" +
+                "]}" +
+                "]");
+        client = server.newClient();
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000); // so changes wait for the refresh to push them
+    }
+
+    @Test
+    public void testReadersDontWaitForSlowRefresh() throws Exception {
+        WFList a = client.getListById("a");
+        WFList c = client.getListById("c");
+        client.createList(a, 0, "new", null); // so the refresh has to push and then load again
+        int initsBefore = server.initRequests.get();
+        server.delayMs = SLOW_REQUEST_MS;
+
+        ListenableFuture<Void> refresh = client.refreshAsync();
+        long maxReadNanos = 0;
+        int reads = 0;
+        while (!refresh.isDone()) {
+            long start = System.nanoTime();
+            assertSame(c, client.getListById("c"));
+            assertEquals(3, client.getAncestryPath(c).size());
+            assertTrue(client.isRootList(a));
+            maxReadNanos = Math.max(maxReadNanos, System.nanoTime() - start);
+            reads++;
+        }
+        refresh.get();
+
+        assertTrue("the refresh should have taken a while", reads > 100);
+        assertTrue("reads took up to " + TimeUnit.NANOSECONDS.toMillis(maxReadNanos) + "ms",
+                maxReadNanos < TimeUnit.MILLISECONDS.toNanos(SLOW_REQUEST_MS / 3));
+        assertEquals("loaded, pushed and loaded again", initsBefore + 2, server.initRequests.get());
+        assertFalse(client.hasUnconfirmedOperations());
+        assertEquals("new", server.getListById("a").getChild(0).getName());
+        assertSame(c, client.getListById("c"));
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testMutationsDuringSlowRefresh() throws Exception {
+        WFList b = client.getListById("b");
+        client.createList(b, 0, "first", null);
+        server.delayMs = SLOW_REQUEST_MS;
+
+        ListenableFuture<Void> refresh = client.refreshAsync();
+        Thread.sleep(SLOW_REQUEST_MS / 2);
+        long start = System.nanoTime();
+        WFList second = client.createList(client.getListById("b"), 0, "second", null);
+        client.editList(client.getListById("c"), "C edited", null);
+        assertTrue("mutations shouldn't wait for the refresh's requests",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(SLOW_REQUEST_MS / 3));
+        assertNotNull(second);
+
+        refresh.get();
+        client.flush();
+        server.delayMs = 0;
+        client.refresh();
+
+        assertFalse(client.hasUnconfirmedOperations());
+        WFList serverB = server.getListById("b");
+        assertEquals(3, serverB.getChildren().size());
+        assertEquals("C edited", server.getListById("c").getName());
+        assertEquals(3, client.getListById("b").getChildren().size());
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testChangesQueuedDuringPushSurviveItsResults() throws Exception {
+        final WFList a = client.getListById("a");
+        client.editList(a, "first", null);
+        server.delayMs = SLOW_REQUEST_MS;
+
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        pusher.start();
+        Thread.sleep(SLOW_REQUEST_MS / 2);
+        client.editList(a, "second", null); // queued behind the push that's in flight
+        pusher.join();
+
+        assertEquals("the push's results shouldn't undo it", "second", a.getName());
+        assertTrue(client.hasUnconfirmedOperations());
+        assertEquals("first", server.getListById("a").getName());
+
+        server.delayMs = 0;
+        client.flush();
+        assertEquals("second", server.getListById("a").getName());
+        assertEquals("second", a.getName());
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testReadingChildrenWhileTheTreeChanges() throws Exception {
+        final WFList a = client.getListById("a");
+        List<WFList> moving = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            moving.add(client.createList(a, 0, "child " + i, null));
+        }
+        client.flush();
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> readFailure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (WFList l : client.getRootLists()) {
+                            l.getName();
+                        }
+                        for (String parentId : new String[] {"a", "b"}) {
+                            List<WFList> children = client.getListById(parentId).getChildren();
+                            if (children == null) continue;
+                            for (WFList child : children) {
+                                assertNotNull(child.getId());
+                            }
+                        }
+                    }
+                } catch (Throwable t) {
+                    readFailure.set(t);
+                }
+            }
+        });
+        reader.start();
+
+        long time = 10;
+        for (int round = 0; round < 50; round++) {
+            for (WFList l : moving) {
+                String to = round % 2 == 0 ? "b" : "a";
+                server.addRemoteOperations(OperationApplierTest.buildMoveOp(l.getId(), to, 0, time++));
+            }
+            client.sync();
+            WFList created = client.createList(null, 0, "root " + round, null);
+            client.deleteList(created);
+        }
+        done.set(true);
+        reader.join();
+
+        if (readFailure.get() != null) throw new AssertionError(readFailure.get());
+        assertEquals(1, client.getRootLists().size());
+        assertEquals("moved back to a (which has b too)", moving.size() + 1, a.getChildren().size());
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testConcurrentRefreshesShareOneLoad() throws Exception {
+        server.addRemoteOperations(PushPoll.buildEditOp("a", "changed", null, 1L, 2)); // so there's something to load
+        int initsBefore = server.initRequests.get();
+        server.delayMs = SLOW_REQUEST_MS;
+
+        ListenableFuture<Void> first = client.refreshAsync();
+        ListenableFuture<Void> second = client.refreshAsync();
+        Thread blocking = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.refresh();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        blocking.start();
+        ListenableFuture<Void> sync = client.syncAsync(); // a refresh is as good as a sync
+
+        first.get();
+        second.get();
+        sync.get();
+        blocking.join();
+        assertEquals(initsBefore + 1, server.initRequests.get());
+
+        second.cancel(true); // cancelling one caller's future doesn't affect the others
+        assertFalse(first.isCancelled());
+
+        // once it's done the next one does load again
+        server.addRemoteOperations(PushPoll.buildEditOp("a", "changed again", null, 2L, 3));
+        client.refresh();
+        assertEquals(initsBefore + 2, server.initRequests.get());
+    }
+}
@@ -0,0 +1,74 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for group commit, against a {@link FakeWorkflowy}.
+ */
+public class WFClientGroupCommitTest {
+
+    private static final long WINDOW_MS = 200;
+
+    private FakeWorkflowy server;
+    private WFClient client;
+
+    @Before
+    public void before() throws Exception {
+        server = new FakeWorkflowy("[" +
+                "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1}," +
+                "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1}," +
+                "{\"id\": \"c\", \"nm\": \"C\", \"lm\": 1}," +
+                "{\"id\": \"d\", \"nm\": \"D\", \"lm\": 1}" +
+                "]");
+        client = server.newClient();
+    }
+
+    @Test
+    public void testChangesWithinWindowArePushedTogether() throws Exception {
+        client.setGroupCommit(WINDOW_MS, 1000);
+        int polls = server.pushPollRequests.get();
+
+        client.editList(client.getListById("a"), "A edited", null);
+        client.completeList(client.getListById("b"), true);
+        client.createList(client.getListById("c"), 0, "new", null);
+        ListenableFuture<Void> last = client.deleteListAsync(client.getListById("d"));
+        assertEquals("nothing pushed yet", polls, server.pushPollRequests.get());
+
+        last.get(WINDOW_MS * 10, TimeUnit.MILLISECONDS);
+        assertEquals("one push for all of them", polls + 1, server.pushPollRequests.get());
+        assertFalse(client.hasUnconfirmedOperations());
+        assertEquals("A edited", server.getListById("a").getName());
+        assertTrue(server.getListById("b").isComplete());
+        assertEquals("new", server.getListById("c").getChild(0).getName());
+        assertNull(server.getListById("d"));
+    }
+
+    @Test
+    public void testMaxOpsPushesBeforeWindowIsUp() throws Exception {
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 4);
+        int polls = server.pushPollRequests.get();
+
+        client.editList(client.getListById("a"), "A edited", null);
+        client.editList(client.getListById("b"), "B edited", null);
+        client.editList(client.getListById("c"), "C edited", null);
+        assertEquals("nothing pushed yet", polls, server.pushPollRequests.get());
+        ListenableFuture<Void> fourth = client.editListAsync(client.getListById("d"), "D edited", null);
+
+        fourth.get(WINDOW_MS * 10, TimeUnit.MILLISECONDS);
+        assertEquals("one push for all of them", polls + 1, server.pushPollRequests.get());
+        assertFalse(client.hasUnconfirmedOperations());
+        for (String id : new String[] {"a", "b", "c", "d"}) {
+            assertEquals(id.toUpperCase() + " edited", server.getListById(id).getName());
+        }
+    }
+}
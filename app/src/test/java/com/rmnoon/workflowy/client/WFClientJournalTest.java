@@ -0,0 +1,92 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for journaling unconfirmed operations across restarts, against a {@link FakeWorkflowy}.
+ */
+public class WFClientJournalTest {
+
+    private File dir;
+    private File journalFile;
+    private FakeWorkflowy server;
+    private WFClient client;
+    private WFClient restarted;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDir();
+        journalFile = new File(dir, "journal");
+        server = new FakeWorkflowy("[{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1}]");
+        client = server.newClient();
+        client.setJournal(new OperationJournal(journalFile));
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000);
+    }
+
+    @After
+    public void after() throws IOException {
+        client.setJournal(null);
+        if (restarted != null) restarted.setJournal(null);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testConfirmedOperationsAreNotPushedAgainAfterRestart() throws Exception {
+        client.createList(client.getListById("a"), 0, "new", null);
+        String saved = client.getSession(); // saved while the create was still unconfirmed
+        client.flush();
+        assertFalse(client.hasUnconfirmedOperations());
+
+        restart(saved);
+        assertFalse(restarted.hasUnconfirmedOperations());
+        int polls = server.pushPollRequests.get();
+        restarted.flush();
+        assertEquals("nothing to push", polls, server.pushPollRequests.get());
+    }
+
+    @Test
+    public void testUnconfirmedOperationsSurviveRestart() throws Exception {
+        client.editList(client.getListById("a"), "A edited", null);
+        String saved = client.getSession();
+
+        restart(saved);
+        assertTrue(restarted.hasUnconfirmedOperations());
+        assertEquals("A edited", restarted.getListById("a").getName());
+        restarted.flush();
+        assertEquals("A edited", server.getListById("a").getName());
+    }
+
+    @Test
+    public void testNewJournalTakesOverSessionsOperations() throws Exception {
+        client.setJournal(null); // like a session saved before there was a journal
+        journalFile.delete();
+        client.editList(client.getListById("a"), "A edited", null);
+        String saved = client.getSession();
+
+        restart(saved);
+        assertTrue(restarted.hasUnconfirmedOperations());
+        restarted.flush();
+        assertEquals("A edited", server.getListById("a").getName());
+    }
+
+    private void restart(String savedSession) throws IOException {
+        restarted = new WFClient(FakeWorkflowy.httpClient(server));
+        restarted.setSession(savedSession);
+        restarted.setJournal(new OperationJournal(journalFile));
+    }
+}
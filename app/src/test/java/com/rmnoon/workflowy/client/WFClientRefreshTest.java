@@ -0,0 +1,180 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for refreshing and syncing, against a {@link FakeWorkflowy}.
+ */
+public class WFClientRefreshTest {
+
+    private FakeWorkflowy server;
+    private WFClient client;
+
+    @Before
+    public void before() throws Exception {
+        server = new FakeWorkflowy("[" +
+                "{\"id\": \"a\", \"nm\": \"A\", \"lm\": 1, \"ch\": [" +
+                    "{\"id\": \"b\", \"nm\": \"B\", \"lm\": 1}" +
+                "]}" +
+                "]");
+        client = server.newClient();
+    }
+
+    @Test
+    public void testRefreshSkipsLoadWhenUnchanged() throws Exception {
+        int inits = server.initRequests.get();
+        int polls = server.pushPollRequests.get();
+        WFList b = client.getListById("b");
+
+        client.refresh();
+        assertEquals("just polled", inits, server.initRequests.get());
+        assertEquals(polls + 1, server.pushPollRequests.get());
+        assertSame(b, client.getListById("b"));
+
+        server.addRemoteOperations(PushPoll.buildEditOp("b", "B edited", null, 1L, 2));
+        client.refresh();
+        assertEquals("loaded once something changed", inits + 1, server.initRequests.get());
+        assertEquals("B edited", client.getListById("b").getName());
+        assertSame(b, client.getListById("b"));
+        assertEquals(ImmutableSet.of("b"), client.getLastLoadDiff().getEdited());
+        assertEquals(ImmutableSet.of("a"), client.getLastLoadDiff().getChangedParents());
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testRefreshLoadsWithUnconfirmedOperations() throws Exception {
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000);
+        client.editList(client.getListById("a"), "A edited", null);
+        int inits = server.initRequests.get();
+
+        client.refresh();
+        assertEquals("pushed and loaded their results", inits + 2, server.initRequests.get());
+        assertEquals("A edited", server.getListById("a").getName());
+        assertEquals("A edited", client.getListById("a").getName());
+    }
+
+    @Test
+    public void testRejectedPushIsRolledBackByRefresh() throws Exception {
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000);
+        ListenableFuture<WFList> created = client.createListAsync(client.getListById("a"), 0, "new", null);
+        client.editList(client.getListById("b"), "B edited", null);
+        String createdId = client.getListById("a").getChild(0).getId();
+        server.pushResponseCode = 400;
+        server.delayMs = 300;
+
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.flush();
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        });
+        pusher.start();
+        Thread.sleep(150);
+        client.editList(client.getListById("a"), "A edited", null); // queued after the refused push was taken
+        pusher.join();
+
+        try {
+            created.get();
+            fail("the create was refused");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PushRejectedException);
+        }
+        assertTrue("only the refused batch is dropped", client.hasUnconfirmedOperations());
+
+        server.pushResponseCode = 200;
+        server.delayMs = 0;
+        client.refresh();
+        assertNull(client.getListById(createdId));
+        assertNull("never pushed", server.getListById(createdId));
+        assertEquals("B", client.getListById("b").getName());
+        assertEquals("A edited", server.getListById("a").getName());
+        assertEquals("A edited", client.getListById("a").getName());
+        assertFalse(client.hasUnconfirmedOperations());
+        WFTestUtil.assertIndexMatchesTree(client);
+    }
+
+    @Test
+    public void testUnreachableServerKeepsChangesQueued() throws Exception {
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000);
+        client.editList(client.getListById("b"), "B edited", null);
+        server.pushResponseCode = 503;
+        try {
+            client.flush();
+            fail("the push failed");
+        } catch (PushRejectedException e) {
+            fail("not a refusal");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(client.hasUnconfirmedOperations());
+
+        server.pushResponseCode = 200;
+        client.flush();
+        assertEquals("B edited", server.getListById("b").getName());
+    }
+
+    @Test
+    public void testUpToDateCheckWithoutLoadedTree() throws Exception {
+        WFClient restored = new WFClient(FakeWorkflowy.httpClient(server));
+        restored.setSession(client.getSessionWithoutLists()); // its lists would be in a snapshot
+        int inits = server.initRequests.get();
+        int polls = server.pushPollRequests.get();
+
+        assertTrue(restored.isUpToDate());
+        assertEquals("just polled", polls + 1, server.pushPollRequests.get());
+
+        server.addRemoteOperations(PushPoll.buildEditOp("b", "B edited", null, 1L, 2));
+        assertFalse(restored.isUpToDate());
+        assertEquals(inits, server.initRequests.get());
+
+        client.setGroupCommit(TimeUnit.MINUTES.toMillis(1), 1000);
+        client.sync();
+        assertTrue(client.isUpToDate());
+        client.editList(client.getListById("a"), "A edited", null);
+        assertFalse("has changes to push", client.isUpToDate());
+    }
+
+    @Test
+    public void testDeletingLastChildMatchesLoadedTree() throws Exception {
+        client.deleteList(client.getListById("b"));
+        WFList a = client.getListById("a");
+        assertNull(a.getChildren());
+        assertEquals(server.getListById("a"), a);
+
+        server.addRemoteOperations(PushPoll.buildEditOp("a", "A edited", null, 1L, 2));
+        client.refresh();
+        assertSame(a, client.getListById("a"));
+        assertEquals(ImmutableSet.of("a"), client.getLastLoadDiff().getEdited());
+        assertTrue(client.getLastLoadDiff().getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testRestoredSessionRefreshesCheaply() throws Exception {
+        WFClient restored = new WFClient(FakeWorkflowy.httpClient(server));
+        restored.setSession(client.getSession());
+        int inits = server.initRequests.get();
+
+        restored.refresh();
+        assertEquals(inits, server.initRequests.get());
+        assertEquals("B", restored.getListById("b").getName());
+    }
+}
@@ -1,6 +1,8 @@
 package com.rmnoon.workflowy.client;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.junit.After;
 import org.junit.Before;
@@ -9,6 +11,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
@@ -63,6 +66,7 @@ public class WFClientTest {
         String rootDesc = "createList root desc " + UUID.randomUUID().toString();
 
         WFList root = client.createRootList(0, rootName, rootDesc);
+        WFTestUtil.assertIndexMatchesTree(client);
         List<WFList> lists = client.getRootLists();
         String rootId = root.getId();
 
@@ -71,6 +75,7 @@ public class WFClientTest {
         assertTrue(lists.contains(root));
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         lists = client.getRootLists();
         assertTrue("objects are reused after refresh", root == lists.get(0));
         assertEquals(lists.size(), 1);
@@ -82,6 +87,7 @@ public class WFClientTest {
         client.createList(root, 0, root.getName() + "_0", null);
         client.createList(root, 2, root.getName() + "_2", null);
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
 
         lists = client.getRootLists();
         assertTrue("objects are reused after refresh", root == lists.get(0));
@@ -101,6 +107,7 @@ public class WFClientTest {
 
         WFList prepended = client.createRootList(0, "prepend_" + root.getName(), "prepend_desc_" + root.getDescription());
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         lists = client.getRootLists();
         assertEquals(lists.size(), 2);
         assertTrue(prepended == lists.get(0));
@@ -115,12 +122,15 @@ public class WFClientTest {
     public void testEditList() throws IOException {
         String rootName = "root_" + UUID.randomUUID().toString();
         WFList rootList = client.createRootList(0, rootName, null);
+        WFTestUtil.assertIndexMatchesTree(client);
         String rootId = rootList.getId();
         String childName = rootName + "_child";
         WFList childList = client.createList(rootList, 0, childName, null);
+        WFTestUtil.assertIndexMatchesTree(client);
         String childId = childList.getId();
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         List<WFList> rootLists = client.getRootLists();
         rootList = rootLists.get(0);
         childList = rootList.getChildren().get(0);
@@ -137,8 +147,10 @@ public class WFClientTest {
         client.editList(rootList, newRootName, newRootDesc);
         client.editList(childList, newChildName, null);
         client.editList(childList, null, newChildDesc);
+        WFTestUtil.assertIndexMatchesTree(client);
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         List<WFList> newRootLists = client.getRootLists();
         WFList newRootList = newRootLists.get(0);
         WFList newChildList = newRootList.getChildren().get(0);
@@ -154,6 +166,7 @@ public class WFClientTest {
 
         client.editList(newRootList, "", "");
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         List<WFList> newNewRootLists = client.getRootLists();
         WFList newNewRootList = newNewRootLists.get(0);
         WFList newNewChildList = newNewRootList.getChildren().get(0);
@@ -169,10 +182,13 @@ public class WFClientTest {
     public void testCompleteList() throws IOException {
         String rootName = "root_" + UUID.randomUUID().toString();
         WFList rootList = client.createRootList(0, rootName, null);
+        WFTestUtil.assertIndexMatchesTree(client);
         String childName = rootName + "_child";
         client.createList(rootList, 0, childName, null);
+        WFTestUtil.assertIndexMatchesTree(client);
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         rootList = client.getRootLists().get(0);
         WFList childList = rootList.getChildren().get(0);
 
@@ -180,8 +196,10 @@ public class WFClientTest {
         assertFalse(childList.isComplete());
 
         client.completeList(rootList, true);
+        WFTestUtil.assertIndexMatchesTree(client);
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         rootList = client.getRootLists().get(0);
         childList = rootList.getChildren().get(0);
 
@@ -190,8 +208,10 @@ public class WFClientTest {
 
         client.completeList(rootList, false);
         client.completeList(childList, true);
+        WFTestUtil.assertIndexMatchesTree(client);
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         rootList = client.getRootLists().get(0);
         childList = rootList.getChildren().get(0);
 
@@ -204,25 +224,56 @@ public class WFClientTest {
         String rootName = "root_" + UUID.randomUUID().toString();
         WFList root = client.createRootList(0, rootName, null);
         WFList child = client.createList(root, 0, "child_" + rootName, null);
+        WFTestUtil.assertIndexMatchesTree(client);
         assertTrue(root.getChildren().contains(child));
 
         client.deleteList(child);
+        WFTestUtil.assertIndexMatchesTree(client);
         assertFalse(root.getChildren().contains(child));
 
         client.refresh();
+        WFTestUtil.assertIndexMatchesTree(client);
         root = client.getRootLists().get(0);
         assertNull(root.getChildren());
     }
 
+    @Test
+    public void testAsyncMutations() throws Exception {
+        String rootName = "root_" + UUID.randomUUID().toString();
+        ListenableFuture<WFList> rootFuture = client.createListAsync(null, 0, rootName, null);
+        WFList root = client.getRootLists().get(0); // the proxy is there right away
+        assertEquals(rootName, root.getName());
+        WFTestUtil.assertIndexMatchesTree(client);
+
+        WFList child = client.createListAsync(root, 0, "child_" + rootName, null).get(10, TimeUnit.SECONDS);
+        assertTrue(rootFuture.isDone()); // pushes go out in order
+        assertEquals(root, rootFuture.get());
+
+        ListenableFuture<Void> edited = client.editListAsync(root, rootName + "_edited", null);
+        ListenableFuture<Void> completed = client.completeListAsync(child, true);
+        ListenableFuture<Void> deleted = client.deleteListAsync(child);
+        assertFalse(root.getChildren().contains(child));
+        Futures.allAsList(edited, completed, deleted).get(10, TimeUnit.SECONDS);
+
+        client.refreshAsync().get(10, TimeUnit.SECONDS);
+        WFTestUtil.assertIndexMatchesTree(client);
+        root = client.getRootLists().get(0);
+        assertEquals(rootName + "_edited", root.getName());
+        assertNull(root.getChildren());
+    }
+
     @Test
     public void testTreeMethods() throws IOException {
         String rootName = "root_" + UUID.randomUUID().toString();
         for (int i = 0; i < 2; i++) {
             WFList l = client.createRootList(null, rootName + "," + i, null);
+            WFTestUtil.assertIndexMatchesTree(client);
             for (int j = 0; j < 3; j++) {
                 WFList m = client.createList(l, null, l.getName() + "," + j, null);
+                WFTestUtil.assertIndexMatchesTree(client);
                 for (int k = 0; k < 4; k++) {
                     client.createList(m, null, m.getName() + "," + k, null);
+                    WFTestUtil.assertIndexMatchesTree(client);
                 }
             }
         }
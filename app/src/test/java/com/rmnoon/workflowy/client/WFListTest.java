@@ -0,0 +1,70 @@
+package com.rmnoon.workflowy.client;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests for comparing lists by their subtree hashes.
+ */
+public class WFListTest {
+
+    @Test
+    public void testEqualTrees() {
+        List<WFList> one = TreeSnapshotTest.buildTree();
+        List<WFList> two = TreeSnapshotTest.buildTree();
+        assertEquals(one, two);
+        assertEquals(one.hashCode(), two.hashCode());
+
+        two.get(0).getChild(0).getChild(0).nm = "changed";
+        assertEquals("hashes are cached until they're invalidated", one, two);
+
+        ListIndex index = new ListIndex();
+        index.rebuild(two);
+        index.invalidateSubtreeHashes(two.get(0).getChild(0).getChild(0));
+        assertNotEquals(one, two);
+        assertEquals(one.get(1), two.get(1));
+    }
+
+    @Test
+    public void testNoChildrenIsntEmptyChildren() {
+        List<WFList> one = TreeSnapshotTest.buildTree();
+        List<WFList> two = TreeSnapshotTest.buildTree();
+        two.get(1).ch = Lists.newArrayList();
+        assertFalse(one.get(1).equals(two.get(1)));
+        assertNotEquals(one.get(1).getSubtreeHash(), two.get(1).getSubtreeHash());
+    }
+
+    @Test
+    public void testDeepTree() {
+        WFList one = buildChain(100000);
+        WFList two = buildChain(100000);
+        assertEquals(one, two); // wouldn't fit on the stack if it recursed
+
+        ListIndex index = new ListIndex();
+        index.rebuild(Lists.newArrayList(two));
+        WFList leaf = index.get("list0");
+        leaf.lm = 2;
+        index.invalidateSubtreeHashes(leaf);
+        assertNotEquals(one, two);
+    }
+
+    private static WFList buildChain(int depth) {
+        WFList root = null;
+        for (int i = 0; i < depth; i++) {
+            WFList list = new WFList();
+            list.id = "list" + i;
+            list.nm = "List " + i;
+            list.lm = 1;
+            if (root != null) list.ch = Lists.newArrayList(root);
+            root = list;
+        }
+        return root;
+    }
+}
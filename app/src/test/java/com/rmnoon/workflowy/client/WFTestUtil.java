@@ -1,6 +1,7 @@
 package com.rmnoon.workflowy.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Resources;
 import com.google.gson.Gson;
@@ -10,6 +11,11 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Created by rmnoon on 6/16/2016.
  */
@@ -22,6 +28,29 @@ public class WFTestUtil {
         }
     }
 
+    /**
+     * Checks that the client's id and parent indexes hold exactly the lists in its tree (by reference).
+     */
+    public static void assertIndexMatchesTree(final WFClient client) {
+        int numInTree = Utils.bfsLists(client.getRootLists(), new Function<WFList, Boolean>() {
+            @Override
+            public Boolean apply(WFList input) {
+                assertSame("index has the list in the tree", input, client.getListById(input.getId()));
+                if (input.getChildren() != null) {
+                    for (WFList child : input.getChildren()) {
+                        assertSame("index has the child's parent", input, client.getParentList(child));
+                    }
+                }
+                return null;
+            }
+        });
+        for (WFList rootList : client.getRootLists()) {
+            assertTrue("index has the root list as a root", client.isRootList(rootList));
+            assertNull("root lists have no parent", client.getParentList(rootList));
+        }
+        assertEquals("index has no lists that aren't in the tree", numInTree, client.getIndex().size());
+    }
+
     public static String getTestUser() {
         return checkPlaceholder(getTestCreds().username, PLACEHOLDER_USERNAME);
     }